@@ -37,9 +37,13 @@ import org.springframework.boot.context.event.ApplicationStartedEvent;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 public class Bridge {
@@ -52,12 +56,25 @@ public class Bridge {
 
     private BidiMap<_MatrixID, String> mappings = new DualHashBidiMap<>();
     private Map<String, Call> calls = new ConcurrentHashMap<>();
+    private ExecutorService callPool;
+    private ExecutorService setupPool;
 
     public Bridge(BridgeConfig cfg, MatrixManager matrix, RemoteManager remote) {
         this.cfg = cfg;
         this.matrix = matrix;
         this.remote = remote;
 
+        AtomicInteger threadIdGen = new AtomicInteger(1);
+        this.callPool = Executors.newFixedThreadPool(
+                Math.max(1, cfg.getCalls().getThreads()),
+                r -> new Thread(r, "calls-" + threadIdGen.getAndIncrement())
+        );
+        AtomicInteger setupIdGen = new AtomicInteger(1);
+        this.setupPool = Executors.newFixedThreadPool(
+                Math.max(1, cfg.getCalls().getSetupThreads()),
+                r -> new Thread(r, "calls-setup-" + setupIdGen.getAndIncrement())
+        );
+
         cfg.getMapping().getUsers().forEach((localId, remoteId) -> {
             _MatrixID mxId = MatrixID.from(localId, matrix.getDomain()).valid();
             log.info("Mapping {} to {}", mxId.getId(), remoteId);
@@ -82,7 +99,7 @@ public class Bridge {
             @Override
             public void onCallCreated(MatrixEndpoint epLocal, CallInfo info) {
                 RemoteEndpoint epRemote = remote.getEndpoint(info.getId(), epLocal.getChannelId(), info.getCallee());
-                calls.put(info.getId(), new Call(info.getId(), epLocal, epRemote));
+                calls.put(info.getId(), new Call(info.getId(), epLocal, epRemote, callPool));
                 log.info("Call {}: Created", info.getId());
             }
 
@@ -104,8 +121,14 @@ public class Bridge {
                     log.warn("Call {}: No Matrix mapping found for {}: hanging up", info.getId(), info.getCallee());
                     endpoint.close();
                 } else {
-                    MatrixEndpoint epLocal = matrix.getOneToOneChannelTo(info.getCaller(), targetUser, info.getId());
-                    calls.put(info.getId(), new Call(info.getId(), epLocal, endpoint));
+                    // This runs on the FreeSWITCH socket reader, which must not wait on the homeserver
+                    Call call = new Call(info.getId(), endpoint, callPool);
+                    calls.put(info.getId(), call);
+                    call.connect(() -> matrix.getOneToOneChannelTo(info.getCaller(), targetUser, info.getId()), setupPool).whenComplete((v, t) -> {
+                        if (Objects.nonNull(t)) {
+                            closeCall(info.getId());
+                        }
+                    });
                     log.info("Call {}: created", info.getId());
                 }
             }
@@ -118,4 +141,10 @@ public class Bridge {
         });
     }
 
+    @PreDestroy
+    public void close() {
+        setupPool.shutdown();
+        callPool.shutdown();
+    }
+
 }
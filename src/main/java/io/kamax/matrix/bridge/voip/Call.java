@@ -29,27 +29,45 @@ import io.kamax.matrix.bridge.voip.remote.RemoteEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 public class Call {
 
     private final Logger log = LoggerFactory.getLogger(Call.class);
 
     private String id;
+    private CallMailbox mailbox;
     private MatrixEndpoint local;
     private RemoteEndpoint remote;
+    private List<Runnable> pending;
 
-    public Call(String id, MatrixEndpoint local, RemoteEndpoint remote) {
+    // All signaling is processed on the call mailbox, so handlers never run concurrently for a given call
+    public Call(String id, RemoteEndpoint remote, Executor pool) {
         this.id = id;
-        this.local = local;
-        this.remote = remote;
+        this.mailbox = new CallMailbox(id, pool);
+        attach(remote);
+    }
+
+    public Call(String id, MatrixEndpoint local, RemoteEndpoint remote, Executor pool) {
+        this(id, remote, pool);
+        attach(local);
+    }
 
-        this.local.addListener(new CallListener() {
+    private void attach(MatrixEndpoint local) {
+        this.local = local;
+        local.addListener(new CallListener() {
 
             @Override
             public void onInvite(String from, CallInviteEvent ev) {
-                log.info("Call {}: Matrix: invite from {}", id, from);
-                remote.handle(from, ev);
+                mailbox.execute(() -> {
+                    log.info("Call {}: Matrix: invite from {}", id, from);
+                    ifOpen(() -> remote.handle(from, ev));
+                });
             }
 
             @Override
@@ -60,34 +78,45 @@ public class Call {
 
             @Override
             public void onCandidates(CallCandidatesEvent ev) {
-                log.info("Call {}: Matrix: candidates", id);
-                remote.handle(ev);
+                mailbox.execute(() -> {
+                    log.info("Call {}: Matrix: candidates", id);
+                    ifOpen(() -> remote.handle(ev));
+                });
             }
 
             @Override
             public void onAnswer(CallAnswerEvent ev) {
-                log.info("Call {}: Matrix: answer", id);
-                remote.handle(ev);
+                mailbox.execute(() -> {
+                    log.info("Call {}: Matrix: answer", id);
+                    ifOpen(() -> remote.handle(ev));
+                });
             }
 
             @Override
             public void onHangup(CallHangupEvent ev) {
-                log.info("Call {}: Matrix: hangup", id);
-                remote.handle(ev);
-                terminate(ev.getReason());
+                mailbox.execute(() -> {
+                    log.info("Call {}: Matrix: hangup", id);
+                    ifOpen(() -> remote.handle(ev));
+                    doTerminate();
+                });
             }
         });
-        this.local.addListener(() -> {
+        local.addListener(() -> mailbox.execute(() -> {
             log.info("Call {}: Matrix: close", id);
-            terminate();
-        });
+            doTerminate();
+        }));
+    }
 
-        this.remote.addListener(new CallListener() {
+    private void attach(RemoteEndpoint remote) {
+        this.remote = remote;
+        remote.addListener(new CallListener() {
 
             @Override
             public void onInvite(String from, CallInviteEvent ev) {
-                log.info("Call {}: Remote: invite from {}", id, from);
-                local.handle(from, ev);
+                mailbox.execute(() -> {
+                    log.info("Call {}: Remote: invite from {}", id, from);
+                    toLocal(() -> local.handle(from, ev));
+                });
             }
 
             @Override
@@ -98,34 +127,68 @@ public class Call {
 
             @Override
             public void onCandidates(CallCandidatesEvent ev) {
-                log.info("Call {}: Remote: candidates", id);
+                mailbox.execute(() -> {
+                    log.info("Call {}: Remote: candidates", id);
+                    toLocal(() -> local.handle(ev));
+                });
             }
 
             @Override
             public void onAnswer(CallAnswerEvent ev) {
-                log.info("Call {}: Remote: answer", id);
-                local.handle(ev);
+                mailbox.execute(() -> {
+                    log.info("Call {}: Remote: answer", id);
+                    toLocal(() -> local.handle(ev));
+                });
             }
 
             @Override
             public void onHangup(CallHangupEvent ev) {
-                log.info("Call {}: Remote: hangup", id);
-                local.handle(ev);
-                terminate(ev.getReason());
+                mailbox.execute(() -> {
+                    log.info("Call {}: Remote: hangup", id);
+                    toLocal(() -> local.handle(ev));
+                    doTerminate();
+                });
             }
         });
-        this.remote.addListener(() -> {
+        remote.addListener(() -> mailbox.execute(() -> {
             log.info("Call {}: Remote: close", id);
-            terminate();
-        });
+            doTerminate();
+        }));
+    }
+
+    private boolean isTerminated() {
+        return Objects.isNull(local) && Objects.isNull(remote);
+    }
+
+    private void ifOpen(Runnable r) {
+        if (isTerminated()) {
+            log.info("Call {}: terminated, ignoring event", id);
+            return;
+        }
+
+        r.run();
+    }
+
+    // Until the Matrix side is connected, events for it are kept in order
+    private void toLocal(Runnable r) {
+        if (Objects.isNull(local) && Objects.nonNull(remote)) {
+            if (Objects.isNull(pending)) {
+                pending = new ArrayList<>();
+            }
+            pending.add(r);
+            return;
+        }
+
+        ifOpen(r);
     }
 
-    public synchronized void terminate(String reason) {
-        if (Objects.isNull(local) && Objects.isNull(remote)) {
+    private void doTerminate() {
+        if (isTerminated()) {
             return;
         }
 
         log.info("Call {}: terminating", id);
+        pending = null;
         if (Objects.nonNull(local)) {
             local.close();
             local = null;
@@ -137,8 +200,41 @@ public class Call {
         }
     }
 
+    // Setting up the Matrix side can take a while, so it runs on its own pool and never holds a mailbox thread.
+    // Only the outcome is handled on the mailbox, and remote events coming meanwhile wait until then.
+    public CompletableFuture<Void> connect(Supplier<MatrixEndpoint> setup, Executor setupPool) {
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        CompletableFuture.supplyAsync(setup, setupPool).whenComplete((ep, t) -> mailbox.execute(() -> {
+            if (Objects.nonNull(t)) {
+                Throwable cause = Objects.nonNull(t.getCause()) ? t.getCause() : t;
+                log.warn("Call {}: unable to reach the Matrix side: {}", id, cause.getMessage());
+                if (Objects.nonNull(remote)) {
+                    remote.handle(CallHangupEvent.from(id, "Matrix side unavailable"));
+                }
+                doTerminate();
+                f.completeExceptionally(cause);
+                return;
+            }
+
+            if (isTerminated()) {
+                ep.close();
+                f.completeExceptionally(new IllegalStateException("Call was terminated"));
+                return;
+            }
+
+            attach(ep);
+            List<Runnable> waiting = pending;
+            pending = null;
+            if (Objects.nonNull(waiting)) {
+                waiting.forEach(this::toLocal);
+            }
+            f.complete(null);
+        }));
+        return f;
+    }
+
     public void terminate() {
-        terminate(null);
+        mailbox.execute(this::doTerminate);
     }
 
 }
@@ -0,0 +1,92 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Runs tasks one at a time and in submission order, on a shared pool, without holding any of its threads while idle
+public class CallMailbox implements Executor {
+
+    private static final int batchSize = 32;
+
+    private final Logger log = LoggerFactory.getLogger(CallMailbox.class);
+
+    private final String id;
+    private final Executor pool;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    public CallMailbox(String id, Executor pool) {
+        this.id = id;
+        this.pool = pool;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(Objects.requireNonNull(task));
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                pool.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // Otherwise the mailbox would look busy forever and never run anything again
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            for (int i = 0; i < batchSize; i++) {
+                Runnable task = tasks.poll();
+                if (Objects.isNull(task)) {
+                    break;
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Call {}: error while processing event", id, e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+        }
+
+        // Give other calls a turn between batches, and catch tasks added while we were finishing
+        if (!tasks.isEmpty()) {
+            schedule();
+        }
+    }
+
+}
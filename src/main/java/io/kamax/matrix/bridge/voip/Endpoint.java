@@ -25,6 +25,8 @@ import io.kamax.matrix.bridge.voip.matrix.event.CallCandidatesEvent;
 import io.kamax.matrix.bridge.voip.matrix.event.CallHangupEvent;
 import io.kamax.matrix.bridge.voip.matrix.event.CallInviteEvent;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface Endpoint {
 
     String getCallId();
@@ -37,12 +39,12 @@ public interface Endpoint {
 
     void addListener(CallListener listener);
 
-    void handle(String from, CallInviteEvent ev);
+    CompletableFuture<Void> handle(String from, CallInviteEvent ev);
 
-    void handle(CallCandidatesEvent ev);
+    CompletableFuture<Void> handle(CallCandidatesEvent ev);
 
-    void handle(CallAnswerEvent ev);
+    CompletableFuture<Void> handle(CallAnswerEvent ev);
 
-    void handle(CallHangupEvent ev);
+    CompletableFuture<Void> handle(CallHangupEvent ev);
 
 }
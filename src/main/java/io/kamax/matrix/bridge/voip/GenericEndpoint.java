@@ -21,9 +21,9 @@
 package io.kamax.matrix.bridge.voip;
 
 import io.kamax.matrix.bridge.voip.matrix.event.CallHangupEvent;
+import io.micrometer.core.instrument.MeterRegistry;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 public abstract class GenericEndpoint implements Endpoint {
@@ -32,31 +32,28 @@ public abstract class GenericEndpoint implements Endpoint {
     private String channelId;
     private String userId;
 
-    private List<CallListener> cListeners = new ArrayList<>();
-    private List<EndpointListener> eListeners = new ArrayList<>();
+    private ListenerRegistry<CallListener> cListeners;
+    private ListenerRegistry<EndpointListener> eListeners;
 
-    protected GenericEndpoint(String userId, String channelId, String callId) {
+    protected GenericEndpoint(String userId, String channelId, String callId, MeterRegistry registry) {
         this.callId = callId;
         this.channelId = channelId;
         this.userId = userId;
+        this.cListeners = new ListenerRegistry<>("call", registry);
+        this.eListeners = new ListenerRegistry<>("endpoint", registry);
     }
 
-    private <T> void fireEvent(List<T> listeners, Consumer<T> c) {
-        listeners.forEach(l -> {
-            try {
-                c.accept(l);
-            } catch (RuntimeException e) {
-                // FIXME show error
-            }
-        });
+    // Use method references, like CallListener::onAnswer, so no object is created per event
+    protected <A> void fireCallEvent(BiConsumer<CallListener, A> event, A a) {
+        cListeners.fire(event, a);
     }
 
-    protected void fireCallEvent(Consumer<CallListener> c) {
-        fireEvent(cListeners, c);
+    protected <A, B> void fireCallEvent(ListenerRegistry.Dispatch<CallListener, A, B> event, A a, B b) {
+        cListeners.fire(event, a, b);
     }
 
-    protected void fireEndpointEvent(Consumer<EndpointListener> c) {
-        fireEvent(eListeners, c);
+    protected void fireEndpointEvent(Consumer<EndpointListener> event) {
+        eListeners.fire(event);
     }
 
     @Override
@@ -85,7 +82,7 @@ public abstract class GenericEndpoint implements Endpoint {
     }
 
     protected void fireHangupEvent(String reason) {
-        fireEvent(cListeners, l -> l.onHangup(CallHangupEvent.from(callId, reason)));
+        cListeners.fire(CallListener::onHangup, CallHangupEvent.from(callId, reason));
     }
 
 }
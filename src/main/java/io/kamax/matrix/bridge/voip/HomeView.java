@@ -23,6 +23,7 @@ package io.kamax.matrix.bridge.voip;
 import io.kamax.matrix.bridge.voip.matrix.RoomNotFoundException;
 import io.kamax.matrix.bridge.voip.matrix.Transaction;
 import io.kamax.matrix.bridge.voip.matrix.UserNotFoundException;
+import io.kamax.matrix.event._MatrixEvent;
 
 public interface HomeView {
 
@@ -32,4 +33,6 @@ public interface HomeView {
 
     void process(Transaction transaction);
 
+    void process(_MatrixEvent event);
+
 }
@@ -0,0 +1,135 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// Listeners can be added from any thread while events are fired: each event goes to a snapshot of the listeners
+public class ListenerRegistry<T> {
+
+    public interface Dispatch<T, A, B> {
+
+        void accept(T listener, A a, B b);
+
+    }
+
+    private static final Object[] empty = new Object[0];
+
+    private final Logger log = LoggerFactory.getLogger(ListenerRegistry.class);
+
+    private final String name;
+    private final MeterRegistry registry;
+    private final AtomicReference<Object[]> listeners = new AtomicReference<>(empty);
+    private final AtomicLong failures = new AtomicLong();
+
+    public ListenerRegistry(String name, MeterRegistry registry) {
+        this.name = name;
+        this.registry = registry;
+    }
+
+    public void add(T listener) {
+        listeners.updateAndGet(current -> {
+            Object[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = listener;
+            return next;
+        });
+    }
+
+    public void remove(T listener) {
+        listeners.updateAndGet(current -> {
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == listener) {
+                    Object[] next = new Object[current.length - 1];
+                    System.arraycopy(current, 0, next, 0, i);
+                    System.arraycopy(current, i + 1, next, i, next.length - i);
+                    return next;
+                }
+            }
+            return current;
+        });
+    }
+
+    public boolean isEmpty() {
+        return listeners.get().length == 0;
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    private void onFailure(Object listener, RuntimeException e) {
+        failures.incrementAndGet();
+        registry.counter("voip.listeners.failures", "registry", name).increment();
+        log.warn("Listener {} of {} failed", listener, name, e);
+    }
+
+    // Each fire returns false if at least one listener failed, so callers can undo what depended on them
+    @SuppressWarnings("unchecked")
+    public boolean fire(Consumer<T> event) {
+        boolean success = true;
+        for (Object l : listeners.get()) {
+            try {
+                event.accept((T) l);
+            } catch (RuntimeException e) {
+                onFailure(l, e);
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <A> boolean fire(BiConsumer<T, A> event, A a) {
+        boolean success = true;
+        for (Object l : listeners.get()) {
+            try {
+                event.accept((T) l, a);
+            } catch (RuntimeException e) {
+                onFailure(l, e);
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <A, B> boolean fire(Dispatch<T, A, B> event, A a, B b) {
+        boolean success = true;
+        for (Object l : listeners.get()) {
+            try {
+                event.accept((T) l, a, b);
+            } catch (RuntimeException e) {
+                onFailure(l, e);
+                success = false;
+            }
+        }
+        return success;
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.kamax.matrix.bridge.voip.config.TraceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Supplier;
+
+// Last signaling messages of each call, with payloads only turned into text when logged or dumped
+@Component
+public class SignalingTrace {
+
+    public static class Entry {
+
+        private Instant timestamp;
+        private String source;
+        private String event;
+        private Supplier<String> payload;
+
+        Entry(Instant timestamp, String source, String event, Supplier<String> payload) {
+            this.timestamp = timestamp;
+            this.source = source;
+            this.event = event;
+            this.payload = payload;
+        }
+
+        public Instant getTimestamp() {
+            return timestamp;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public String getEvent() {
+            return event;
+        }
+
+        public String getPayload() {
+            return payload.get();
+        }
+
+    }
+
+    private final Logger log = LoggerFactory.getLogger(SignalingTrace.class);
+
+    private int size;
+    private int threshold;
+    private Cache<String, Deque<Entry>> calls;
+
+    public SignalingTrace(TraceConfig cfg) {
+        this.size = cfg.getSize();
+        this.threshold = (int) Math.round(Math.max(0, Math.min(1, cfg.getSampleRate())) * 10000);
+        this.calls = Caffeine.newBuilder()
+                .maximumSize(cfg.getCalls())
+                .expireAfterAccess(cfg.getIdle())
+                .build();
+    }
+
+    // Decided from the call ID alone, so all messages of a call are either logged or not
+    public boolean isSampled(String callId) {
+        return Math.floorMod(callId.hashCode() * 0x9E3779B9, 10000) < threshold;
+    }
+
+    public void record(String callId, String source, String event, Supplier<String> payload) {
+        if (Objects.isNull(callId)) {
+            return;
+        }
+
+        if (size > 0) {
+            Deque<Entry> ring = calls.get(callId, id -> new ArrayDeque<>(size));
+            synchronized (ring) {
+                if (ring.size() >= size) {
+                    ring.poll();
+                }
+                ring.add(new Entry(Instant.now(), source, event, payload));
+            }
+        }
+
+        if (isSampled(callId)) {
+            log.info("Call {}: {} {}:\n{}", callId, source, event, payload.get());
+        } else if (log.isDebugEnabled()) {
+            log.debug("Call {}: {} {}:\n{}", callId, source, event, payload.get());
+        }
+    }
+
+    public List<Entry> dump(String callId) {
+        Deque<Entry> ring = calls.getIfPresent(callId);
+        if (Objects.isNull(ring)) {
+            return Collections.emptyList();
+        }
+
+        synchronized (ring) {
+            return new ArrayList<>(ring);
+        }
+    }
+
+}
@@ -44,7 +44,31 @@ public class BridgeConfig {
 
     }
 
+    public class Calls {
+
+        private int threads = Runtime.getRuntime().availableProcessors() * 2;
+        private int setupThreads = 16;
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public void setThreads(int threads) {
+            this.threads = threads;
+        }
+
+        public int getSetupThreads() {
+            return setupThreads;
+        }
+
+        public void setSetupThreads(int setupThreads) {
+            this.setupThreads = setupThreads;
+        }
+
+    }
+
     private Mappings mapping = new Mappings();
+    private Calls calls = new Calls();
 
     public Mappings getMapping() {
         return mapping;
@@ -54,4 +78,12 @@ public class BridgeConfig {
         this.mapping = mapping;
     }
 
+    public Calls getCalls() {
+        return calls;
+    }
+
+    public void setCalls(Calls calls) {
+        this.calls = calls;
+    }
+
 }
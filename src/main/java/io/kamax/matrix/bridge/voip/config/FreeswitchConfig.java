@@ -20,18 +20,32 @@
 
 package io.kamax.matrix.bridge.voip.config;
 
+import io.kamax.matrix.bridge.voip.remote.call.CandidateStrategy;
+import io.kamax.matrix.bridge.voip.remote.call.VertoRouting;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 @Configuration
 @ConfigurationProperties("providers.freeswitch")
 public class FreeswitchConfig {
 
-    public class Verto {
+    public static class Verto {
 
         private String url;
         private String login;
         private String password;
+        private int weight = 1;
+        private long reconnectDelay = 1000;
+        private long reconnectMaxDelay = 30000;
+        private long timeout = 10000;
+        private Map<String, Long> timeouts = new HashMap<>();
+        private int queueSize = 1000;
+        private int batchSize = 1;
 
         public String getUrl() {
             return url;
@@ -57,9 +71,110 @@ public class FreeswitchConfig {
             this.password = password;
         }
 
+        public int getWeight() {
+            return weight;
+        }
+
+        public void setWeight(int weight) {
+            this.weight = weight;
+        }
+
+        public long getReconnectDelay() {
+            return reconnectDelay;
+        }
+
+        public void setReconnectDelay(long reconnectDelay) {
+            this.reconnectDelay = reconnectDelay;
+        }
+
+        public long getReconnectMaxDelay() {
+            return reconnectMaxDelay;
+        }
+
+        public void setReconnectMaxDelay(long reconnectMaxDelay) {
+            this.reconnectMaxDelay = reconnectMaxDelay;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(long timeout) {
+            this.timeout = timeout;
+        }
+
+        public Map<String, Long> getTimeouts() {
+            return timeouts;
+        }
+
+        public void setTimeouts(Map<String, Long> timeouts) {
+            this.timeouts = timeouts;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public void setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+    }
+
+    public class Candidates {
+
+        private CandidateStrategy strategy = CandidateStrategy.Fixed;
+        private long delay = 2000;
+        private long minDelay = 200;
+        private long maxDelay = 2000;
+
+        public CandidateStrategy getStrategy() {
+            return strategy;
+        }
+
+        public void setStrategy(CandidateStrategy strategy) {
+            this.strategy = strategy;
+        }
+
+        public long getDelay() {
+            return delay;
+        }
+
+        public void setDelay(long delay) {
+            this.delay = delay;
+        }
+
+        public long getMinDelay() {
+            return minDelay;
+        }
+
+        public void setMinDelay(long minDelay) {
+            this.minDelay = minDelay;
+        }
+
+        public long getMaxDelay() {
+            return maxDelay;
+        }
+
+        public void setMaxDelay(long maxDelay) {
+            this.maxDelay = maxDelay;
+        }
+
     }
 
     private Verto verto = new Verto();
+    private List<Verto> nodes = new ArrayList<>();
+    private VertoRouting routing = VertoRouting.LeastCalls;
+    private boolean earlyMedia = false;
+    private Candidates candidates = new Candidates();
 
     public Verto getVerto() {
         return verto;
@@ -69,4 +184,36 @@ public class FreeswitchConfig {
         this.verto = verto;
     }
 
+    public List<Verto> getNodes() {
+        return nodes;
+    }
+
+    public void setNodes(List<Verto> nodes) {
+        this.nodes = nodes;
+    }
+
+    public VertoRouting getRouting() {
+        return routing;
+    }
+
+    public void setRouting(VertoRouting routing) {
+        this.routing = routing;
+    }
+
+    public boolean isEarlyMedia() {
+        return earlyMedia;
+    }
+
+    public void setEarlyMedia(boolean earlyMedia) {
+        this.earlyMedia = earlyMedia;
+    }
+
+    public Candidates getCandidates() {
+        return candidates;
+    }
+
+    public void setCandidates(Candidates candidates) {
+        this.candidates = candidates;
+    }
+
 }
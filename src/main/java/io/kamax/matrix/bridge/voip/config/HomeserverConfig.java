@@ -42,6 +42,9 @@ public class HomeserverConfig implements InitializingBean {
     private String asToken;
     private String hsToken;
     private String localpart;
+    private int threads = 16;
+    private long retryDelay = 1000;
+    private int retryMax = 5;
 
     @Autowired
     public HomeserverConfig(MatrixConfig mxCfg) {
@@ -84,6 +87,30 @@ public class HomeserverConfig implements InitializingBean {
         this.localpart = localpart;
     }
 
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public int getRetryMax() {
+        return retryMax;
+    }
+
+    public void setRetryMax(int retryMax) {
+        this.retryMax = retryMax;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         if (Objects.isNull(host)) {
@@ -20,15 +20,9 @@
 
 package io.kamax.matrix.bridge.voip.matrix;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import io.kamax.matrix.MatrixErrorInfo;
 import io.kamax.matrix.ThreePid;
-import io.kamax.matrix.event._MatrixEvent;
 import io.kamax.matrix.json.GsonUtil;
-import io.kamax.matrix.json.MatrixJsonEventFactory;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -37,8 +31,10 @@ import org.springframework.web.bind.annotation.*;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
 
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
 import static org.springframework.web.bind.annotation.RequestMethod.PUT;
@@ -49,10 +45,13 @@ public class ApplicationServiceController {
     private Logger log = LoggerFactory.getLogger(ApplicationServiceController.class);
 
     private MatrixManager as;
+    private TransactionPipeline pipeline;
+    private TransactionReader txnReader = new TransactionReader();
 
     @Autowired
-    public ApplicationServiceController(MatrixManager as) {
+    public ApplicationServiceController(MatrixManager as, TransactionPipeline pipeline) {
         this.as = as;
+        this.pipeline = pipeline;
     }
 
     @ResponseStatus(value = HttpStatus.BAD_REQUEST)
@@ -121,19 +120,17 @@ public class ApplicationServiceController {
             @PathVariable String txnId) throws IOException {
         log.info("Processing {}", request.getServletPath());
 
-        JsonObject body = GsonUtil.parseObj(IOUtils.toString(request.getInputStream(), request.getCharacterEncoding()));
-        JsonArray eventsJson = GsonUtil.getArray(body, "events");
+        String encoding = request.getCharacterEncoding();
+        Reader body = Objects.isNull(encoding) ?
+                new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8) :
+                new InputStreamReader(request.getInputStream(), encoding);
+        Transaction transaction = txnReader.read(txnId, body);
 
-        List<_MatrixEvent> events = new ArrayList<>();
-        for (JsonElement event : eventsJson) {
-            events.add(MatrixJsonEventFactory.get(event.getAsJsonObject()));
+        if (pipeline.isEnabled()) {
+            pipeline.submit(transaction);
+        } else {
+            as.forHome(token).process(transaction);
         }
-
-        Transaction transaction = new Transaction();
-        transaction.setId(txnId);
-        transaction.setEvents(events);
-
-        as.forHome(token).process(transaction);
         return "{}";
     }
 
@@ -0,0 +1,71 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import com.google.gson.JsonObject;
+import io.kamax.matrix.bridge.voip.matrix.event.CallEvent;
+import io.kamax.matrix.event._RoomEvent;
+import io.kamax.matrix.json.GsonUtil;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Handlers for m.call.* events, by event type. Each one gets the content already turned into its own class.
+public class CallEventRegistry {
+
+    public interface Handler<T extends CallEvent> {
+
+        void handle(_RoomEvent ev, T data, MatrixBridgeUser user);
+
+    }
+
+    public static class Binding<T extends CallEvent> {
+
+        private Class<T> type;
+        private Handler<T> handler;
+
+        private Binding(Class<T> type, Handler<T> handler) {
+            this.type = type;
+            this.handler = handler;
+        }
+
+        public T parse(JsonObject content) {
+            return GsonUtil.get().fromJson(content, type);
+        }
+
+        public void handle(_RoomEvent ev, CallEvent data, MatrixBridgeUser user) {
+            handler.handle(ev, type.cast(data), user);
+        }
+
+    }
+
+    private Map<String, Binding<?>> bindings = new ConcurrentHashMap<>();
+
+    public <T extends CallEvent> void register(String eventType, Class<T> type, Handler<T> handler) {
+        bindings.put(eventType, new Binding<>(type, handler));
+    }
+
+    public Optional<Binding<?>> find(String eventType) {
+        return Optional.ofNullable(bindings.get(eventType));
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import io.kamax.matrix.bridge.voip.matrix.event.CallCandidatesEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Groups the candidates of a call so they are sent in as few events as possible
+public class CandidateCoalescer {
+
+    private ScheduledExecutorService scheduler;
+    private long window;
+    private int maxBatch;
+    private Consumer<List<CallCandidatesEvent.Candidate>> sink;
+    private Counter saved;
+    private Counter sent;
+
+    // Nothing is sent before the other side got our invite or answer
+    private boolean open;
+    private boolean closed;
+    private List<CallCandidatesEvent.Candidate> pending = new ArrayList<>();
+    private ScheduledFuture<?> flush;
+
+    public CandidateCoalescer(ScheduledExecutorService scheduler, long window, int maxBatch, Consumer<List<CallCandidatesEvent.Candidate>> sink, MeterRegistry registry) {
+        this.scheduler = scheduler;
+        this.window = window;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.sink = sink;
+        this.saved = registry.counter("voip.matrix.candidates.saved");
+        this.sent = registry.counter("voip.matrix.candidates.events");
+    }
+
+    public void add(List<CallCandidatesEvent.Candidate> candidates) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            pending.addAll(candidates);
+        }
+        schedule();
+    }
+
+    public void open() {
+        synchronized (this) {
+            open = true;
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        synchronized (this) {
+            if (!open || closed || pending.isEmpty()) {
+                return;
+            }
+
+            // A full batch has nothing to wait for
+            if (pending.size() < maxBatch) {
+                if (Objects.isNull(flush)) {
+                    flush = scheduler.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    private void flush() {
+        List<List<CallCandidatesEvent.Candidate>> batches = new ArrayList<>();
+        synchronized (this) {
+            if (Objects.nonNull(flush)) {
+                flush.cancel(false);
+                flush = null;
+            }
+
+            if (closed) {
+                return;
+            }
+
+            for (int i = 0; i < pending.size(); i += maxBatch) {
+                batches.add(new ArrayList<>(pending.subList(i, Math.min(pending.size(), i + maxBatch))));
+            }
+            pending.clear();
+        }
+
+        for (List<CallCandidatesEvent.Candidate> batch : batches) {
+            sent.increment();
+            saved.increment(batch.size() - 1);
+            sink.accept(batch);
+        }
+    }
+
+    public synchronized void close() {
+        closed = true;
+        pending.clear();
+        if (Objects.nonNull(flush)) {
+            flush.cancel(false);
+            flush = null;
+        }
+    }
+
+}
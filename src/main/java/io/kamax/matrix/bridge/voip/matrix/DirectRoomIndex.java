@@ -0,0 +1,249 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.kamax.matrix.json.GsonUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Maps a virtual user and a Matrix user to their 1:1 room
+public class DirectRoomIndex {
+
+    private static final long saveDelay = 1000;
+
+    private final Logger log = LoggerFactory.getLogger(DirectRoomIndex.class);
+
+    private final Path path;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, String> rooms = new HashMap<>();
+    private final Map<String, Set<String>> keysByRoom = new HashMap<>();
+    private final Set<String> scanned = new HashSet<>();
+    // Scans and room creations in progress, so concurrent callers wait for them instead of doing them again
+    private final Map<String, CompletableFuture<Void>> running = new HashMap<>();
+    private final Object fileLock = new Object();
+    private boolean dirty;
+
+    public DirectRoomIndex(String path, ScheduledExecutorService scheduler) {
+        this.path = StringUtils.isBlank(path) ? null : Paths.get(path);
+        this.scheduler = scheduler;
+        if (Objects.isNull(this.path) || !Files.exists(this.path)) {
+            return;
+        }
+
+        try {
+            JsonObject data = GsonUtil.parseObj(new String(Files.readAllBytes(this.path), StandardCharsets.UTF_8));
+            GsonUtil.findObj(data, "rooms").ifPresent(obj -> obj.entrySet().forEach(entry -> {
+                rooms.put(entry.getKey(), entry.getValue().getAsString());
+                keysByRoom.computeIfAbsent(entry.getValue().getAsString(), r -> new HashSet<>()).add(entry.getKey());
+            }));
+            if (data.has("scanned")) {
+                for (JsonElement el : data.getAsJsonArray("scanned")) {
+                    scanned.add(el.getAsString());
+                }
+            }
+            log.info("Direct room index: {} rooms loaded from {}", rooms.size(), this.path);
+        } catch (IOException | RuntimeException e) {
+            throw new RuntimeException("Unable to load direct room index from " + this.path, e);
+        }
+    }
+
+    private String getKey(String vUserId, String userId) {
+        return vUserId + " " + userId;
+    }
+
+    // Changes are written together after a short delay, and never while holding the index lock
+    private void save() {
+        if (Objects.isNull(path) || dirty) {
+            return;
+        }
+
+        dirty = true;
+        scheduler.schedule(this::flush, saveDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized JsonObject snapshot() {
+        if (!dirty) {
+            return null;
+        }
+
+        dirty = false;
+        JsonObject roomsJson = new JsonObject();
+        rooms.forEach(roomsJson::addProperty);
+        JsonArray scannedJson = new JsonArray();
+        scanned.forEach(scannedJson::add);
+        JsonObject data = new JsonObject();
+        data.add("rooms", roomsJson);
+        data.add("scanned", scannedJson);
+        return data;
+    }
+
+    // Snapshots are taken and written under the same lock, so an older one never overwrites a newer one
+    public void flush() {
+        synchronized (fileLock) {
+            JsonObject data = snapshot();
+            if (Objects.isNull(data)) {
+                return;
+            }
+
+            write(data);
+        }
+    }
+
+    private void write(JsonObject data) {
+        try {
+            Path parent = path.toAbsolutePath().getParent();
+            if (Objects.nonNull(parent)) {
+                Files.createDirectories(parent);
+            }
+
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(tmp, GsonUtil.get().toJson(data).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Unable to save direct room index to {}: {}", path, e.getMessage());
+        }
+    }
+
+    public synchronized Optional<String> find(String vUserId, String userId) {
+        return Optional.ofNullable(rooms.get(getKey(vUserId, userId)));
+    }
+
+    public synchronized void put(String vUserId, String userId, String roomId) {
+        String key = getKey(vUserId, userId);
+        if (roomId.equals(rooms.get(key))) {
+            return;
+        }
+
+        String previous = rooms.put(key, roomId);
+        if (Objects.nonNull(previous)) {
+            keysByRoom.getOrDefault(previous, Collections.emptySet()).remove(key);
+        }
+        keysByRoom.computeIfAbsent(roomId, r -> new HashSet<>()).add(key);
+        save();
+    }
+
+    public synchronized void remove(String roomId) {
+        Set<String> keys = keysByRoom.remove(roomId);
+        if (Objects.isNull(keys) || keys.isEmpty()) {
+            return;
+        }
+
+        keys.forEach(rooms::remove);
+        save();
+    }
+
+    // Runs the task, or waits for the one with the same key already running. Its failure is reported to all of them.
+    private void once(String key, Runnable task) {
+        CompletableFuture<Void> f;
+        boolean owner;
+        synchronized (this) {
+            f = running.get(key);
+            owner = Objects.isNull(f);
+            if (owner) {
+                f = new CompletableFuture<>();
+                running.put(key, f);
+            }
+        }
+
+        if (!owner) {
+            try {
+                f.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+            return;
+        }
+
+        try {
+            task.run();
+            f.complete(null);
+        } catch (RuntimeException e) {
+            f.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                running.remove(key);
+            }
+        }
+    }
+
+    private synchronized boolean isScanned(String vUserId) {
+        return scanned.contains(vUserId);
+    }
+
+    private synchronized void setScanned(String vUserId) {
+        if (scanned.add(vUserId)) {
+            save();
+        }
+    }
+
+    // Lists the rooms of the virtual user once. A failed scan is done again on the next call.
+    public void scan(String vUserId, Runnable scanner) {
+        if (isScanned(vUserId)) {
+            return;
+        }
+
+        once("scan " + vUserId, () -> {
+            if (!isScanned(vUserId)) {
+                scanner.run();
+                setScanned(vUserId);
+            }
+        });
+    }
+
+    // Only one room is made for concurrent callers, the others get the same one
+    public String findOrCreate(String vUserId, String userId, Supplier<String> creator) {
+        String key = getKey(vUserId, userId);
+        while (true) {
+            Optional<String> roomId = find(vUserId, userId);
+            if (roomId.isPresent()) {
+                return roomId.get();
+            }
+
+            once(key, () -> {
+                if (!find(vUserId, userId).isPresent()) {
+                    put(vUserId, userId, creator.get());
+                }
+            });
+        }
+    }
+
+}
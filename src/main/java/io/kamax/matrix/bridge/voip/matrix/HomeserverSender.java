@@ -0,0 +1,223 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import io.kamax.matrix.client.MatrixClientRequestException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sends requests to the homeserver on behalf of virtual users, most important first, and waits out rate limits
+public class HomeserverSender {
+
+    public enum Priority {
+
+        // Invites, answers and hangups: a call depends on them
+        Critical,
+
+        // Candidates and anything else
+        Normal
+
+    }
+
+    private class Task implements Comparable<Task> {
+
+        private Priority priority;
+        private long seq = seqGen.getAndIncrement();
+        private String userId;
+        private Runnable request;
+        private CompletableFuture<Void> future = new CompletableFuture<>();
+        private long queuedAt = System.nanoTime();
+        private boolean attempted;
+        private int attempts;
+
+        Task(Priority priority, String userId, Runnable request) {
+            this.priority = priority;
+            this.userId = userId;
+            this.request = request;
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            int c = priority.compareTo(o.priority);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+
+    }
+
+    private final Logger log = LoggerFactory.getLogger(HomeserverSender.class);
+
+    private final AtomicLong seqGen = new AtomicLong();
+    private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>();
+    private final Map<String, Long> limitedUntil = new ConcurrentHashMap<>();
+    private final Map<Priority, Timer> latency = new EnumMap<>(Priority.class);
+    private final Set<Task> deferred = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService workers;
+    private long retryDelay;
+    private int retryMax;
+    private volatile boolean stopped;
+
+    public HomeserverSender(int threads, long retryDelay, int retryMax, ScheduledExecutorService scheduler, MeterRegistry registry) {
+        this.retryDelay = retryDelay;
+        this.retryMax = retryMax;
+        this.scheduler = scheduler;
+
+        for (Priority p : Priority.values()) {
+            latency.put(p, Timer.builder("voip.matrix.send.latency")
+                    .tag("priority", p.name())
+                    .publishPercentileHistogram()
+                    .register(registry));
+        }
+        registry.gauge("voip.matrix.send.queue", queue, PriorityBlockingQueue::size);
+
+        AtomicInteger threadIdGen = new AtomicInteger(1);
+        int count = Math.max(1, threads);
+        workers = Executors.newFixedThreadPool(count, r -> new Thread(r, "matrix-hs-" + threadIdGen.getAndIncrement()));
+        for (int i = 0; i < count; i++) {
+            workers.execute(this::run);
+        }
+    }
+
+    public CompletableFuture<Void> submit(Priority priority, String userId, Runnable request) {
+        Task task = new Task(priority, userId, request);
+        enqueue(task);
+        return task.future;
+    }
+
+    private void fail(Task task) {
+        task.future.completeExceptionally(new IllegalStateException("Homeserver sender is stopped"));
+    }
+
+    // A task added while close() drains the queue is failed here instead of waiting forever
+    private void enqueue(Task task) {
+        if (stopped) {
+            fail(task);
+            return;
+        }
+
+        queue.add(task);
+        if (stopped && queue.remove(task)) {
+            fail(task);
+        }
+    }
+
+    // Whoever removes the task from the deferred set owns it: the timer or close()
+    private void later(Task task, long delay) {
+        deferred.add(task);
+        try {
+            scheduler.schedule(() -> {
+                if (deferred.remove(task)) {
+                    enqueue(task);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            if (deferred.remove(task)) {
+                fail(task);
+            }
+        }
+    }
+
+    // The entry goes away once its deadline passed, unless it was pushed back meanwhile, so users are not kept forever
+    private void limit(String userId, long delay) {
+        long until = limitedUntil.merge(userId, System.currentTimeMillis() + delay, Math::max);
+        try {
+            scheduler.schedule(() -> limitedUntil.remove(userId, until), until - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closing: the whole map goes away with us
+        }
+    }
+
+    int getLimitedCount() {
+        return limitedUntil.size();
+    }
+
+    private boolean isRateLimited(MatrixClientRequestException e) {
+        return e.getError().map(err -> "M_LIMIT_EXCEEDED".equals(err.getErrcode())).orElse(false);
+    }
+
+    private void run() {
+        while (!stopped) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long wait = limitedUntil.getOrDefault(task.userId, 0L) - System.currentTimeMillis();
+            if (wait > 0) {
+                later(task, wait);
+                continue;
+            }
+
+            // Time from submission until the request first went out, retries excluded
+            if (!task.attempted) {
+                task.attempted = true;
+                latency.get(task.priority).record(System.nanoTime() - task.queuedAt, TimeUnit.NANOSECONDS);
+            }
+
+            try {
+                task.request.run();
+                task.future.complete(null);
+            } catch (MatrixClientRequestException e) {
+                // A rate limited request was not applied, so it is safe to send again
+                if (isRateLimited(e) && task.attempts < retryMax) {
+                    long delay = retryDelay << Math.min(task.attempts, 10);
+                    task.attempts++;
+                    limit(task.userId, delay);
+                    log.warn("Rate limited as {}, retrying in {} ms (attempt #{})", task.userId, delay, task.attempts);
+                    later(task, delay);
+                } else {
+                    task.future.completeExceptionally(e);
+                }
+            } catch (RuntimeException e) {
+                task.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    public void close() {
+        stopped = true;
+        workers.shutdownNow();
+
+        Task task;
+        while ((task = queue.poll()) != null) {
+            fail(task);
+        }
+
+        for (Task t : deferred) {
+            if (deferred.remove(t)) {
+                fail(t);
+            }
+        }
+    }
+
+}
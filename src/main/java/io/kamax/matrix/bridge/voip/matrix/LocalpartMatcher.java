@@ -0,0 +1,110 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Extracts the remote ID from a localpart, using the first user template that matches
+public class LocalpartMatcher {
+
+    private static final String placeholder = "%REMOTE_ID%";
+    private static final String groupName = "remoteId";
+    private static final String regexMetaChars = "\\.[]{}()<>*+-=!?^$|";
+    private static final int cacheSize = 10000;
+
+    private final Logger log = LoggerFactory.getLogger(LocalpartMatcher.class);
+
+    private final List<Function<String, String>> templates = new ArrayList<>();
+    private final Map<String, Optional<String>> cache = new ConcurrentHashMap<>();
+
+    public LocalpartMatcher(List<String> templates) {
+        for (String template : templates) {
+            this.templates.add(compile(template));
+        }
+    }
+
+    private Function<String, String> compile(String template) {
+        String prefix = StringUtils.substringBefore(template, placeholder);
+        String suffix = StringUtils.substringAfter(template, placeholder);
+        boolean isLiteral = StringUtils.countMatches(template, placeholder) == 1 &&
+                StringUtils.containsNone(prefix, regexMetaChars) &&
+                StringUtils.containsNone(suffix, regexMetaChars);
+
+        if (isLiteral) {
+            log.info("Compiling {} to prefix '{}' and suffix '{}'", template, prefix, suffix);
+            int minLength = prefix.length() + suffix.length();
+            return localpart -> {
+                if (localpart.length() < minLength || !localpart.startsWith(prefix) || !localpart.endsWith(suffix)) {
+                    return null;
+                }
+
+                return localpart.substring(prefix.length(), localpart.length() - suffix.length());
+            };
+        }
+
+        String regex = template.replace(placeholder, "(?<" + groupName + ">.*)");
+        log.info("Compiling {} to {}", template, regex);
+        Pattern pattern = Pattern.compile(regex);
+        return localpart -> {
+            Matcher m = pattern.matcher(localpart);
+            return m.matches() ? m.group(groupName) : null;
+        };
+    }
+
+    private Optional<String> match(String localpart) {
+        for (Function<String, String> template : templates) {
+            String remoteId = template.apply(localpart);
+            if (Objects.nonNull(remoteId)) {
+                return Optional.of(remoteId);
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    public Optional<String> findRemoteId(String localpart) {
+        Optional<String> remoteId = cache.get(localpart);
+        if (Objects.nonNull(remoteId)) {
+            return remoteId;
+        }
+
+        remoteId = match(localpart);
+        if (cache.size() >= cacheSize) {
+            // Crude, but keeps the cache bounded without any bookkeeping on the lookup path
+            cache.clear();
+        }
+        cache.put(localpart, remoteId);
+        return remoteId;
+    }
+
+}
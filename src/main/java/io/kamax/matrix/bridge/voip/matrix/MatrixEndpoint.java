@@ -20,24 +20,49 @@
 
 package io.kamax.matrix.bridge.voip.matrix;
 
+import com.google.gson.JsonObject;
+import io.kamax.matrix.bridge.voip.CallListener;
 import io.kamax.matrix.bridge.voip.EndpointListener;
 import io.kamax.matrix.bridge.voip.GenericEndpoint;
+import io.kamax.matrix.bridge.voip.SignalingTrace;
+import io.kamax.matrix.bridge.voip.config.CandidateConfig;
 import io.kamax.matrix.bridge.voip.matrix.event.CallAnswerEvent;
 import io.kamax.matrix.bridge.voip.matrix.event.CallCandidatesEvent;
 import io.kamax.matrix.bridge.voip.matrix.event.CallHangupEvent;
 import io.kamax.matrix.bridge.voip.matrix.event.CallInviteEvent;
 import io.kamax.matrix.client._MatrixClient;
 import io.kamax.matrix.json.GsonUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
 
 public class MatrixEndpoint extends GenericEndpoint {
 
-    private _MatrixClient client;
+    private final Logger log = LoggerFactory.getLogger(MatrixEndpoint.class);
 
-    public MatrixEndpoint(MatrixBridgeUser user, String roomId, String callId) {
-        super(user.getLocalId(), roomId, callId);
+    // Only used from the call mailbox once the call is established
+    private volatile _MatrixClient client;
+    private HomeserverSender sender;
+    private SignalingTrace trace;
+    private CompletableFuture<Void> outbound = CompletableFuture.completedFuture(null);
+    private CandidateCoalescer candidates;
+
+    public MatrixEndpoint(MatrixBridgeUser user, String roomId, String callId, HomeserverSender sender, ScheduledExecutorService scheduler, CandidateConfig candidateCfg, SignalingTrace trace, MeterRegistry registry) {
+        super(user.getLocalId(), roomId, callId, registry);
         this.client = user.getClient();
+        this.sender = sender;
+        this.trace = trace;
+        this.candidates = new CandidateCoalescer(scheduler, candidateCfg.getWindow(), candidateCfg.getMaxBatch(), this::sendCandidates, registry);
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        return t instanceof CompletionException && Objects.nonNull(t.getCause()) ? t.getCause() : t;
     }
 
     private void ifOpen(Runnable r) {
@@ -48,66 +73,96 @@ public class MatrixEndpoint extends GenericEndpoint {
         r.run();
     }
 
-    private void ifOpenOrHangup(Runnable r) {
-        try {
-            ifOpen(r);
-        } catch (RuntimeException ex) {
-            close(CallHangupEvent.from(getCallId(), ex.getMessage()));
+    // Requests of a call go out one after the other through the shared sender, so the signaling thread never waits on them
+    private synchronized CompletableFuture<Void> send(String type, JsonObject content, HomeserverSender.Priority priority) {
+        _MatrixClient c = client;
+        if (Objects.isNull(c)) {
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            f.completeExceptionally(new IllegalStateException("Call is closed"));
+            return f;
         }
+
+        trace.record(getCallId(), "matrix", "out " + type, content::toString);
+        outbound = outbound.handle((v, t) -> null).thenCompose(v -> sender.submit(priority, getUserId(), () -> c.getRoom(getChannelId()).sendEvent(type, content)));
+        return outbound;
+    }
+
+    private CompletableFuture<Void> orHangup(CompletableFuture<Void> f) {
+        return f.whenComplete((v, t) -> {
+            if (Objects.nonNull(t)) {
+                close(CallHangupEvent.from(getCallId(), unwrap(t).getMessage()));
+            }
+        });
+    }
+
+    private void sendCandidates(List<CallCandidatesEvent.Candidate> batch) {
+        ifOpen(() -> send("m.call.candidates", GsonUtil.makeObj(CallCandidatesEvent.from(getCallId(), batch)), HomeserverSender.Priority.Normal).whenComplete((v, t) -> {
+            if (Objects.nonNull(t)) {
+                // The call can still work with the candidates within the SDP
+                log.warn("Call {}: unable to send {} candidates: {}", getCallId(), batch.size(), unwrap(t).getMessage());
+            }
+        }));
     }
 
     void inject(String from, CallInviteEvent ev) {
-        fireCallEvent(l -> l.onInvite(from, ev));
+        fireCallEvent(CallListener::onInvite, from, ev);
     }
 
     void inject(CallCandidatesEvent ev) {
-        fireCallEvent(l -> l.onCandidates(ev));
+        fireCallEvent(CallListener::onCandidates, ev);
     }
 
     void inject(CallAnswerEvent ev) {
-        fireCallEvent(l -> l.onAnswer(ev));
+        fireCallEvent(CallListener::onAnswer, ev);
     }
 
     void inject(CallHangupEvent ev) {
-        fireCallEvent(l -> l.onHangup(ev));
+        fireCallEvent(CallListener::onHangup, ev);
     }
 
     @Override
-    public void handle(String from, CallInviteEvent ev) {
-        ifOpenOrHangup(() -> {
-            ev.getOffer().setType("offer");
-            client.getRoom(getChannelId()).sendEvent("m.call.invite", GsonUtil.makeObj(ev));
-        });
+    public CompletableFuture<Void> handle(String from, CallInviteEvent ev) {
+        ev.getOffer().setType("offer");
+        return orHangup(send("m.call.invite", GsonUtil.makeObj(ev), HomeserverSender.Priority.Critical).thenRun(candidates::open));
     }
 
     @Override
-    public void handle(CallCandidatesEvent ev) {
-        // TODO
+    public CompletableFuture<Void> handle(CallCandidatesEvent ev) {
+        ifOpen(() -> candidates.add(ev.getCandidates()));
+        return CompletableFuture.completedFuture(null);
     }
 
     @Override
-    public void handle(CallAnswerEvent ev) {
-        ifOpenOrHangup(() -> {
-            ev.getAnswer().setType("answer");
-            client.getRoom(getChannelId()).sendEvent("m.call.answer", GsonUtil.makeObj(ev));
-        });
+    public CompletableFuture<Void> handle(CallAnswerEvent ev) {
+        ev.getAnswer().setType("answer");
+        return orHangup(send("m.call.answer", GsonUtil.makeObj(ev), HomeserverSender.Priority.Critical).thenRun(candidates::open));
     }
 
     @Override
-    public void handle(CallHangupEvent evRemote) {
-        close(evRemote);
-    }
-
-    private synchronized void close(CallHangupEvent ev) {
-        ifOpen(() -> {
-            try {
-                client.getRoom(getChannelId()).sendEvent("m.call.hangup", GsonUtil.makeObj(CallHangupEvent.from(ev.getCallId(), ev.getReason())));
-            } catch (RuntimeException e) {
-                // TODO possibly report this as warning?
-            } finally {
-                client = null;
-                fireEndpointEvent(EndpointListener::onClose);
+    public CompletableFuture<Void> handle(CallHangupEvent evRemote) {
+        return close(evRemote);
+    }
+
+    private CompletableFuture<Void> close(CallHangupEvent ev) {
+        candidates.close();
+
+        CompletableFuture<Void> hangup;
+        synchronized (this) {
+            if (Objects.isNull(client)) {
+                return CompletableFuture.completedFuture(null);
             }
+
+            hangup = send("m.call.hangup", GsonUtil.makeObj(CallHangupEvent.from(ev.getCallId(), ev.getReason())), HomeserverSender.Priority.Critical);
+            client = null;
+        }
+
+        return hangup.handle((v, t) -> {
+            if (Objects.nonNull(t)) {
+                log.warn("Call {}: unable to send hangup: {}", getCallId(), unwrap(t).getMessage());
+            }
+
+            fireEndpointEvent(EndpointListener::onClose);
+            return null;
         });
     }
 
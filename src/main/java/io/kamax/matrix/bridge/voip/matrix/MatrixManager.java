@@ -20,6 +20,9 @@
 
 package io.kamax.matrix.bridge.voip.matrix;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.google.gson.JsonObject;
 import io.kamax.matrix.MatrixID;
 import io.kamax.matrix.MatrixIdCodec;
@@ -28,9 +31,14 @@ import io.kamax.matrix._MatrixUserProfile;
 import io.kamax.matrix.bridge.voip.CallInfo;
 import io.kamax.matrix.bridge.voip.HomeView;
 import io.kamax.matrix.bridge.voip.IdentityView;
+import io.kamax.matrix.bridge.voip.ListenerRegistry;
+import io.kamax.matrix.bridge.voip.SignalingTrace;
+import io.kamax.matrix.bridge.voip.config.CacheConfig;
+import io.kamax.matrix.bridge.voip.config.CandidateConfig;
 import io.kamax.matrix.bridge.voip.config.EntityTemplateConfig;
 import io.kamax.matrix.bridge.voip.config.HomeserverConfig;
 import io.kamax.matrix.bridge.voip.config.MatrixConfig;
+import io.kamax.matrix.bridge.voip.config.RoomConfig;
 import io.kamax.matrix.bridge.voip.matrix.event.*;
 import io.kamax.matrix.client.MatrixClientContext;
 import io.kamax.matrix.client._MatrixClient;
@@ -41,19 +49,20 @@ import io.kamax.matrix.hs.RoomMembership;
 import io.kamax.matrix.hs._MatrixRoom;
 import io.kamax.matrix.json.GsonUtil;
 import io.kamax.matrix.room.RoomCreationOptions;
-import org.apache.commons.collections4.queue.CircularFifoQueue;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 @Component
 public class MatrixManager {
@@ -61,66 +70,111 @@ public class MatrixManager {
     private final Logger log = LoggerFactory.getLogger(MatrixManager.class);
 
     private final String remoteIdPlaceholder = "%REMOTE_ID%";
-    private final String remoteIdRegexGroupName = "remoteId";
-    private final String remoteIdRegexGroup = "(?<" + remoteIdRegexGroupName + ">.*)";
 
     private MatrixConfig cfg;
-    private List<Pattern> patterns;
+    private LocalpartMatcher matcher;
     private _MatrixApplicationServiceClient as;
-    private Map<String, MatrixBridgeUser> vMxUsers = new ConcurrentHashMap<>();
+    private Cache<String, MatrixBridgeUser> vMxUsers;
     private Map<String, MatrixEndpoint> endpoints = new ConcurrentHashMap<>();
-
-    private List<MatrixListener> listeners = new ArrayList<>();
-
-    public MatrixManager(MatrixConfig mxCfg, HomeserverConfig hsCfg) {
+    private TransactionLog transactions;
+    private RoomMembershipCache memberships;
+    private DirectRoomIndex directRooms;
+    private HomeView home;
+    private CallEventRegistry callEvents = new CallEventRegistry();
+    private ScheduledThreadPoolExecutor scheduler;
+    private HomeserverSender sender;
+    private CandidateConfig candidateCfg;
+    private SignalingTrace trace;
+    private MeterRegistry registry;
+
+    private ListenerRegistry<MatrixListener> listeners;
+
+    public MatrixManager(
+            MatrixConfig mxCfg,
+            HomeserverConfig hsCfg,
+            RoomConfig roomCfg,
+            CacheConfig cacheCfg,
+            CandidateConfig candidateCfg,
+            TransactionLog transactions,
+            SignalingTrace trace,
+            MeterRegistry registry
+    ) {
         if (mxCfg.getUsers().size() < 1) {
             log.error("At least one user template must be configured");
             System.exit(1);
         }
 
         this.cfg = mxCfg;
+        this.transactions = transactions;
+        this.candidateCfg = candidateCfg;
+        this.trace = trace;
+        this.registry = registry;
+        this.listeners = new ListenerRegistry<>("matrix", registry);
+
+        // Timers for all calls, like candidate batching
+        scheduler = new ScheduledThreadPoolExecutor(2, r -> {
+            Thread t = new Thread(r, "matrix-timers");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        registry.gauge("voip.matrix.timers", scheduler, s -> s.getQueue().size());
 
-        patterns = new ArrayList<>();
-        for (EntityTemplateConfig entityTemplate : mxCfg.getUsers()) {
-            String pattern = entityTemplate.getTemplate().replace(remoteIdPlaceholder, remoteIdRegexGroup);
-            log.info("Compiling {} to {}", entityTemplate.getTemplate(), pattern);
-            patterns.add(Pattern.compile(pattern));
-        }
+        // Requests to the homeserver made on behalf of calls, shared by all virtual users
+        sender = new HomeserverSender(hsCfg.getThreads(), hsCfg.getRetryDelay(), hsCfg.getRetryMax(), scheduler, registry);
+
+        // Endpoints keep their own reference to the user, so evicting one during a call is harmless
+        vMxUsers = Caffeine.newBuilder()
+                .maximumSize(cacheCfg.getUsers().getSize())
+                .expireAfterAccess(cacheCfg.getUsers().getIdle())
+                .removalListener((String id, MatrixBridgeUser user, RemovalCause cause) -> log.debug("Virtual user for {} removed from cache: {}", id, cause))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, vMxUsers, "voip.matrix.users");
+
+        matcher = new LocalpartMatcher(mxCfg.getUsers().stream()
+                .map(EntityTemplateConfig::getTemplate)
+                .collect(Collectors.toList()));
 
         as = new MatrixApplicationServiceClient(new MatrixClientContext()
                 .setDomain(mxCfg.getDomain())
                 .setHsBaseUrl(hsCfg.getHost())
                 .setToken(hsCfg.getAsToken())
                 .setUserWithLocalpart(hsCfg.getLocalpart()));
+
+        memberships = new RoomMembershipCache(
+                roomId -> as.getRoom(roomId).getJoinedUsers().stream()
+                        .map(_MatrixUserProfile::getId)
+                        .collect(Collectors.toList()),
+                this::findClientForUser,
+                cacheCfg.getRooms().getSize(),
+                cacheCfg.getRooms().getIdle(),
+                registry
+        );
+        directRooms = new DirectRoomIndex(roomCfg.getIndex(), scheduler);
+        callEvents.register("m.call.invite", CallInviteEvent.class, this::onCallInvite);
+        callEvents.register("m.call.candidates", CallCandidatesEvent.class, this::onCallCandidates);
+        callEvents.register("m.call.answer", CallAnswerEvent.class, this::onCallAnswer);
+        callEvents.register("m.call.hangup", CallHangupEvent.class, this::onCallHangup);
+        home = createHomeView();
     }
 
     public String getDomain() {
         return cfg.getDomain();
     }
 
-    private Optional<Matcher> findMatcherForUser(String localpart) {
-        for (Pattern p : patterns) {
-            Matcher m = p.matcher(localpart);
-            if (m.matches()) {
-                return Optional.of(m);
-            }
-        }
-
-        return Optional.empty();
-    }
-
-    private Optional<Matcher> findMatcherForUser(_MatrixID mxId) {
+    private Optional<String> findRemoteIdForUser(_MatrixID mxId) {
         if (!mxId.getDomain().equals(cfg.getDomain())) {
             // Ignoring non-local user
             return Optional.empty();
         }
 
-        return findMatcherForUser(mxId.getLocalPart());
+        return matcher.findRemoteId(mxId.getLocalPart());
     }
 
     public Optional<MatrixBridgeUser> findClientForUser(_MatrixID mxId) {
-        return findMatcherForUser(mxId).map(
-                m -> vMxUsers.computeIfAbsent(m.group(remoteIdRegexGroupName),
+        return findRemoteIdForUser(mxId).map(
+                remoteId -> vMxUsers.get(remoteId,
                         id -> new MatrixBridgeUser(as.getUser(mxId.getLocalPart()), mxId.getId(), id))
         );
     }
@@ -135,20 +189,28 @@ public class MatrixManager {
     }
 
     public HomeView forHome(String token) {
+        return home;
+    }
 
+    private HomeView createHomeView() {
         return new HomeView() {
 
-            private CircularFifoQueue<String> lastTransactions = new CircularFifoQueue<>(5);
+            private final Map<String, Consumer<_MatrixEvent>> eventHandlers = new HashMap<>();
+
+            {
+                eventHandlers.put("m.room.member", ev -> pushMembershipEvent((_RoomMembershipEvent) ev));
+                eventHandlers.put("m.room.message", ev -> pushMessageEvent((_RoomMessageEvent) ev));
+            }
 
             @Override
             public void queryUser(String user) throws UserNotFoundException {
                 _MatrixID userId = MatrixID.asAcceptable(user);
-                Matcher m = findMatcherForUser(userId).orElseThrow(() -> {
+                String remoteIdRaw = findRemoteIdForUser(userId).orElseThrow(() -> {
                     log.warn("Got queried about an unknown user {} : no pattern was found", userId.getId());
                     return new InvalidIdException(userId.getId());
                 });
 
-                String remoteId = MatrixIdCodec.decode(m.group("remoteId"));
+                String remoteId = MatrixIdCodec.decode(remoteIdRaw);
                 log.info("Creating virtual user for {} for remote ID {}", userId.getId(), remoteId);
 
                 _MatrixClient client = as.createUser(userId.getLocalPart());
@@ -163,32 +225,48 @@ public class MatrixManager {
 
             @Override
             public void process(Transaction transaction) {
-                if (lastTransactions.contains(transaction.getId())) {
+                if (!transactions.begin(transaction.getId())) {
                     log.info("Transaction {} has already been processed, skipping", transaction.getId());
                     return;
                 }
 
-                for (_MatrixEvent event : transaction.getEvents()) {
-                    log.info("Processing event {} of type {}", event.getId(), event.getType());
-                    if (event instanceof _RoomMembershipEvent) {
-                        pushMembershipEvent((_RoomMembershipEvent) event);
-                    } else if (event instanceof _RoomMessageEvent) {
-                        pushMessageEvent((_RoomMessageEvent) event);
-                    } else if (event instanceof _RoomEvent) {
-                        _RoomEvent rEvent = (_RoomEvent) event;
-                        if (rEvent.getType().startsWith("m.call.")) {
-                            pushCallEvent(rEvent);
-                        }
-                    } else {
-                        log.info("Unknown event type {} from {}", event.getType(), event.getSender());
+                try {
+                    for (_MatrixEvent event : transaction.getEvents()) {
+                        process(event);
                     }
+                } catch (RuntimeException e) {
+                    transactions.abort(transaction.getId());
+                    throw e;
                 }
+                transactions.commit(transaction.getId());
+            }
 
-                lastTransactions.add(transaction.getId());
+            @Override
+            public void process(_MatrixEvent event) {
+                log.info("Processing event {} of type {}", event.getId(), event.getType());
+                Consumer<_MatrixEvent> handler = eventHandlers.get(event.getType());
+                if (Objects.nonNull(handler)) {
+                    handler.accept(event);
+                } else if (event.getType().startsWith("m.call.") && event instanceof _RoomEvent) {
+                    pushCallEvent((_RoomEvent) event);
+                } else {
+                    log.info("Unknown event type {} from {}", event.getType(), event.getSender());
+                }
             }
 
             private void pushMembershipEvent(_RoomMembershipEvent ev) {
                 log.info("Room {}: Membership {} for {}", ev.getRoomId(), ev.getMembership(), ev.getInvitee());
+                memberships.update(ev.getRoomId(), ev.getInvitee(), ev.getMembership());
+
+                // Rooms are only loaded for this when a virtual user joins them, not for every join the bridge sees
+                boolean relevant = memberships.isLoaded(ev.getRoomId()) || findClientForUser(ev.getInvitee()).isPresent();
+                if (relevant && RoomMembership.Join.is(ev.getMembership())) {
+                    indexDirectRoom(ev.getRoomId());
+                }
+
+                if (RoomMembership.Leave.is(ev.getMembership()) || RoomMembership.Ban.is(ev.getMembership())) {
+                    directRooms.remove(ev.getRoomId());
+                }
 
                 if (as.getUser().orElseGet(() -> as.getWhoAmI()).equals(ev.getInvitee())) {
                     log.info("Event for global AS user");
@@ -226,14 +304,19 @@ public class MatrixManager {
             }
 
             private void pushCallEvent(_RoomEvent ev) {
-                if (findMatcherForUser(ev.getSender()).isPresent()) {
+                if (findRemoteIdForUser(ev.getSender()).isPresent()) {
                     log.info("Event about ourselves, skipping");
                     return;
                 }
 
-                log.info("Got call event", ev.getId());
+                Optional<CallEventRegistry.Binding<?>> binding = callEvents.find(ev.getType());
+                if (!binding.isPresent()) {
+                    log.info("Ignoring call event {}: unsupported type {}", ev.getId(), ev.getType());
+                    return;
+                }
+
                 JsonObject content = EventKey.Content.findObj(ev.getJson()).orElseGet(JsonObject::new);
-                CallEvent call = GsonUtil.get().fromJson(content, CallEvent.class);
+                CallEvent call = binding.get().parse(content);
                 if (!call.isValid()) {
                     log.warn("Ignoring call event: invalid");
                     return;
@@ -244,94 +327,94 @@ public class MatrixManager {
                     return;
                 }
 
-                List<MatrixBridgeUser> vUsers = as.getRoom(ev.getRoomId()).getJoinedUsers().stream()
-                        .filter(p -> findMatcherForUser(p.getId()).isPresent())
-                        .map(_MatrixUserProfile::getId)
-                        .flatMap(id -> Stream.of(findClientForUser(id)))
-                        .filter(Optional::isPresent)
-                        .map(Optional::get)
-                        .collect(Collectors.toList());
+                trace.record(call.getCallId(), "matrix", "in " + ev.getType(), content::toString);
+
+                List<MatrixBridgeUser> vUsers = memberships.getVirtualUsers(ev.getRoomId());
+                if (vUsers.isEmpty()) {
+                    log.info("Ignoring call event: no virtual user in room {}", ev.getRoomId());
+                    return;
+                }
+
                 if (vUsers.size() > 1) {
                     log.info("Ignoring call event: room {} is not a 1:1 chat", ev.getRoomId());
                     return;
                 }
 
-                MatrixBridgeUser vUser = vUsers.get(0);
-                if ("m.call.invite".equals(ev.getType())) {
-                    log.info("Call {}: Calling {}", call.getCallId(), vUser.getRemoteId());
-                    CallInviteEvent data = GsonUtil.get().fromJson(content, CallInviteEvent.class);
-                    if (!data.isValid()) {
-                        log.warn("Call {}: Ignoring: Invalid", call.getCallId());
-                        return;
-                    }
+                binding.get().handle(ev, call, vUsers.get(0));
+            }
 
-                    long age = GsonUtil.findLong(ev.getJson(), "age").orElse(0L);
-                    Instant ts = Instant.now().minus(age, ChronoUnit.MILLIS);
-                    Instant expiredAt = ts.plus(data.getLifetime(), ChronoUnit.MILLIS);
-                    log.info("Call {}: From {} at {} expiring in {} ({})", call.getCallId(), ev.getSender().getId(), ts, data.getLifetime(), expiredAt);
-                    if (expiredAt.isBefore(Instant.now())) {
-                        log.info("Call {}: Expired", call.getCallId());
-                        return;
-                    }
+        };
+    }
 
-                    log.info(
-                            "Call {}: Type {} with SDP:\n{}",
-                            call.getCallId(),
-                            data.getOffer().getType(),
-                            data.getOffer().getSdp()
-                    );
+    private void onCallInvite(_RoomEvent ev, CallInviteEvent data, MatrixBridgeUser vUser) {
+        log.info("Call {}: Calling {}", data.getCallId(), vUser.getRemoteId());
+        long age = GsonUtil.findLong(ev.getJson(), "age").orElse(0L);
+        Instant ts = Instant.now().minus(age, ChronoUnit.MILLIS);
+        Instant expiredAt = ts.plus(data.getLifetime(), ChronoUnit.MILLIS);
+        log.info("Call {}: From {} at {} expiring in {} ({})", data.getCallId(), ev.getSender().getId(), ts, data.getLifetime(), expiredAt);
+        if (expiredAt.isBefore(Instant.now())) {
+            log.info("Call {}: Expired", data.getCallId());
+            return;
+        }
 
-                    CallInfo cInfo = new CallInfo(call.getCallId(), ev.getRoomId(), ev.getSender().getId(), vUser.getRemoteId(), data.getOffer().getSdp());
-                    MatrixEndpoint mxCall = new MatrixEndpoint(vUser, ev.getRoomId(), call.getCallId());
-                    endpoints.put(data.getCallId(), mxCall);
-                    listeners.forEach(l -> l.onCallCreated(mxCall, cInfo));
-                    mxCall.inject(ev.getSender().getId(), data);
+        log.info("Call {}: Type {}", data.getCallId(), data.getOffer().getType());
 
-                }
+        CallInfo cInfo = new CallInfo(data.getCallId(), ev.getRoomId(), ev.getSender().getId(), vUser.getRemoteId(), data.getOffer().getSdp());
+        MatrixEndpoint mxCall = track(new MatrixEndpoint(vUser, ev.getRoomId(), data.getCallId(), sender, scheduler, candidateCfg, trace, registry));
 
-                if ("m.call.candidates".equals(ev.getType())) {
-                    log.info("Call {}: candidates", call.getCallId());
-                    CallCandidatesEvent data = GsonUtil.get().fromJson(content, CallCandidatesEvent.class);
+        // Without a call to carry it, the invite would go nowhere and the caller would ring until the lifetime expires
+        if (listeners.isEmpty() || !listeners.fire(MatrixListener::onCallCreated, mxCall, cInfo)) {
+            log.warn("Call {}: Unable to bridge, hanging up", data.getCallId());
+            mxCall.close();
+            return;
+        }
 
-                    MatrixEndpoint mxCall = endpoints.get(call.getCallId());
-                    if (Objects.isNull(mxCall)) {
-                        log.warn("Call {}: Unknown, ignoring", call.getCallId());
-                        return;
-                    }
+        mxCall.inject(ev.getSender().getId(), data);
+    }
 
-                    mxCall.inject(data);
-                }
+    private void onCallCandidates(_RoomEvent ev, CallCandidatesEvent data, MatrixBridgeUser vUser) {
+        log.info("Call {}: candidates", data.getCallId());
+        MatrixEndpoint mxCall = endpoints.get(data.getCallId());
+        if (Objects.isNull(mxCall)) {
+            log.warn("Call {}: Unknown, ignoring", data.getCallId());
+            return;
+        }
 
-                if ("m.call.answer".equals(ev.getType())) {
-                    log.info("Call {}: answer", call.getCallId());
-                    CallAnswerEvent data = GsonUtil.get().fromJson(content, CallAnswerEvent.class);
-                    log.info("Data: {}", data.getAnswer());
+        mxCall.inject(data);
+    }
 
-                    MatrixEndpoint mxCall = endpoints.get(call.getCallId());
-                    if (Objects.isNull(mxCall)) {
-                        log.warn("Unknown call, ignoring");
-                        return;
-                    }
+    private void onCallAnswer(_RoomEvent ev, CallAnswerEvent data, MatrixBridgeUser vUser) {
+        log.info("Call {}: answer", data.getCallId());
+        MatrixEndpoint mxCall = endpoints.get(data.getCallId());
+        if (Objects.isNull(mxCall)) {
+            log.warn("Unknown call, ignoring");
+            return;
+        }
 
-                    mxCall.inject(data);
-                }
+        mxCall.inject(data);
+    }
 
-                if ("m.call.hangup".equals(ev.getType())) {
-                    log.info("Call {}: hangup", call.getCallId());
-                    CallHangupEvent data = GsonUtil.get().fromJson(content, CallHangupEvent.class);
+    private void onCallHangup(_RoomEvent ev, CallHangupEvent data, MatrixBridgeUser vUser) {
+        log.info("Call {}: hangup", data.getCallId());
+        MatrixEndpoint mxCall = endpoints.remove(data.getCallId());
+        if (Objects.isNull(mxCall)) {
+            log.warn("Unknown call, ignoring");
+            return;
+        }
 
-                    MatrixEndpoint mxCall = endpoints.remove(call.getCallId());
-                    if (Objects.isNull(mxCall)) {
-                        log.warn("Unknown call, ignoring");
-                        return;
-                    }
+        mxCall.inject(data);
+        listeners.fire(MatrixListener::onCallDestroyed, data.getCallId());
+    }
 
-                    mxCall.inject(data);
-                    listeners.forEach(l -> l.onCallDestroyed(call.getCallId()));
-                }
-            }
+    public <T extends CallEvent> void registerCallEvent(String type, Class<T> dataType, CallEventRegistry.Handler<T> handler) {
+        callEvents.register(type, dataType, handler);
+    }
 
-        };
+    @PreDestroy
+    public void close() {
+        sender.close();
+        scheduler.shutdownNow();
+        directRooms.flush();
     }
 
     public IdentityView forIdentity() {
@@ -344,38 +427,67 @@ public class MatrixManager {
 
     public MatrixEndpoint getEndpoint(String remoteId, String roomId, String callId) {
         MatrixBridgeUser user = getClientForUser(remoteId);
-        MatrixEndpoint endpoint = new MatrixEndpoint(user, roomId, callId);
+        return track(new MatrixEndpoint(user, roomId, callId, sender, scheduler, candidateCfg, trace, registry));
+    }
+
+    private MatrixEndpoint track(MatrixEndpoint endpoint) {
+        String callId = endpoint.getCallId();
         endpoint.addListener(() -> {
             log.info("Removing endpoint for Call {}: closed", callId);
-            endpoints.remove(callId);
+            endpoints.remove(callId, endpoint);
         });
         endpoints.put(callId, endpoint);
         return endpoint;
     }
 
+    private void indexDirectRoom(String roomId) {
+        Collection<_MatrixID> joined = memberships.getJoinedUsers(roomId);
+        List<MatrixBridgeUser> vUsers = memberships.getVirtualUsers(roomId);
+        if (joined.size() != 2 || vUsers.size() != 1) {
+            return;
+        }
+
+        String vUserId = vUsers.get(0).getLocalId();
+        joined.stream().filter(id -> !vUserId.equals(id.getId())).findFirst().ifPresent(id -> {
+            log.info("Room {} is a 1:1 room between {} and {}", roomId, vUserId, id.getId());
+            directRooms.put(vUserId, id.getId(), roomId);
+        });
+    }
+
+    // Only done once per virtual user, to index rooms which existed before the index did
+    private void scanDirectRooms(MatrixBridgeUser user) {
+        log.info("Scanning rooms of {} for 1:1 rooms", user.getLocalId());
+        for (_MatrixRoom r : user.getClient().getJoinedRooms()) {
+            List<_MatrixUserProfile> users = r.getJoinedUsers();
+            if (users.size() != 2) {
+                log.info("Room {} is not 1:1", r.getAddress());
+                continue;
+            }
+
+            users.stream()
+                    .map(_MatrixUserProfile::getId)
+                    .filter(id -> !user.getLocalId().equals(id.getId()))
+                    .findFirst()
+                    .ifPresent(id -> directRooms.put(user.getLocalId(), id.getId(), r.getAddress()));
+        }
+    }
+
     public MatrixEndpoint getOneToOneChannelTo(String remoteId, _MatrixID targetUserId, String callId) {
         MatrixBridgeUser user = getClientForUser(remoteId);
-        return user.getClient().getJoinedRooms().stream()
-                .filter(r -> {
-                    List<_MatrixUserProfile> users = r.getJoinedUsers();
-                    if (users.size() != 2) {
-                        log.info("Room {} is not 1:1", r.getAddress());
-                        return false;
-                    }
+        if (!directRooms.find(user.getLocalId(), targetUserId.getId()).isPresent()) {
+            directRooms.scan(user.getLocalId(), () -> scanDirectRooms(user));
+        }
 
-                    return users.stream().anyMatch(u -> targetUserId.equals(u.getId()));
-                }).findFirst().map(r -> {
-                    log.info("Found 1:1 room with {}: {}", targetUserId.getId(), r.getAddress());
-                    return getEndpoint(remoteId, r.getAddress(), callId);
-                }).orElseGet(() -> {
-                    log.info("No 1:1 room with {}, making one instead", targetUserId.getId());
-
-                    RoomCreationOptions opts = RoomCreationOptions.build()
-                            .setDirect(true)
-                            .setInvites(Collections.singleton(targetUserId)).get();
-                    _MatrixRoom r = user.getClient().createRoom(opts);
-                    return getEndpoint(remoteId, r.getAddress(), callId);
-                });
+        String roomId = directRooms.findOrCreate(user.getLocalId(), targetUserId.getId(), () -> {
+            log.info("No 1:1 room with {}, making one instead", targetUserId.getId());
+
+            RoomCreationOptions opts = RoomCreationOptions.build()
+                    .setDirect(true)
+                    .setInvites(Collections.singleton(targetUserId)).get();
+            return user.getClient().createRoom(opts).getAddress();
+        });
+        log.info("Using 1:1 room with {}: {}", targetUserId.getId(), roomId);
+        return getEndpoint(remoteId, roomId, callId);
     }
 
 }
@@ -0,0 +1,178 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.kamax.matrix._MatrixID;
+import io.kamax.matrix.hs.RoomMembership;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+public class RoomMembershipCache {
+
+    // Guarded by its own lock, so changes to a room never wait on another one
+    private class Room {
+
+        private final CompletableFuture<Void> loaded = new CompletableFuture<>();
+        private final Map<String, _MatrixID> joined = new ConcurrentHashMap<>();
+        // Changes received while the room is loading, applied on top of what was loaded
+        private List<Consumer<Map<String, _MatrixID>>> pending = new ArrayList<>();
+        private long version;
+        private List<MatrixBridgeUser> vUsers;
+
+    }
+
+    private final Function<String, List<_MatrixID>> loader;
+    private final Function<_MatrixID, Optional<MatrixBridgeUser>> resolver;
+    private final Cache<String, Room> rooms;
+
+    public RoomMembershipCache(Function<String, List<_MatrixID>> loader, Function<_MatrixID, Optional<MatrixBridgeUser>> resolver, long size, Duration idle, MeterRegistry registry) {
+        this.loader = loader;
+        this.resolver = resolver;
+        this.rooms = Caffeine.newBuilder()
+                .maximumSize(size)
+                .expireAfterAccess(idle)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, rooms, "voip.matrix.rooms");
+    }
+
+    private Room getRoom(String roomId) {
+        Room room = rooms.getIfPresent(roomId);
+        if (Objects.isNull(room)) {
+            // Known before it is loaded, so membership changes coming meanwhile are kept
+            Room created = new Room();
+            room = rooms.asMap().putIfAbsent(roomId, created);
+            if (Objects.isNull(room)) {
+                room = created;
+                load(roomId, room);
+            }
+        }
+
+        // Other callers wait for the room being loaded instead of loading it again
+        try {
+            room.loaded.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+
+        return room;
+    }
+
+    // Loaded outside of the map lock, so a slow homeserver only delays callers for this room
+    private void load(String roomId, Room room) {
+        List<_MatrixID> users;
+        try {
+            users = loader.apply(roomId);
+        } catch (RuntimeException e) {
+            rooms.asMap().remove(roomId, room);
+            room.loaded.completeExceptionally(e);
+            throw e;
+        }
+
+        synchronized (room) {
+            for (_MatrixID user : users) {
+                room.joined.put(user.getId(), user);
+            }
+            room.pending.forEach(change -> change.accept(room.joined));
+            room.pending = null;
+        }
+        room.loaded.complete(null);
+    }
+
+    public Collection<_MatrixID> getJoinedUsers(String roomId) {
+        return Collections.unmodifiableCollection(getRoom(roomId).joined.values());
+    }
+
+    public List<MatrixBridgeUser> getVirtualUsers(String roomId) {
+        Room room = getRoom(roomId);
+        long version;
+        List<_MatrixID> joined;
+        synchronized (room) {
+            if (Objects.nonNull(room.vUsers)) {
+                return room.vUsers;
+            }
+
+            version = room.version;
+            joined = new ArrayList<>(room.joined.values());
+        }
+
+        List<MatrixBridgeUser> vUsers = joined.stream()
+                .map(resolver)
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .collect(Collectors.toList());
+
+        // Only kept if no membership changed while it was computed, or it would already be stale
+        synchronized (room) {
+            if (room.version == version) {
+                room.vUsers = vUsers;
+            }
+        }
+
+        return vUsers;
+    }
+
+    public boolean isLoaded(String roomId) {
+        return Objects.nonNull(rooms.getIfPresent(roomId));
+    }
+
+    // Rooms we do not know yet are ignored: they will be fully loaded on first use
+    public void update(String roomId, _MatrixID user, String membership) {
+        Room room = rooms.getIfPresent(roomId);
+        if (Objects.isNull(room)) {
+            return;
+        }
+
+        Consumer<Map<String, _MatrixID>> change;
+        if (RoomMembership.Join.is(membership)) {
+            change = joined -> joined.put(user.getId(), user);
+        } else if (RoomMembership.Leave.is(membership) || RoomMembership.Ban.is(membership)) {
+            change = joined -> joined.remove(user.getId());
+        } else {
+            return;
+        }
+
+        synchronized (room) {
+            if (Objects.nonNull(room.pending)) {
+                room.pending.add(change);
+            } else {
+                change.accept(room.joined);
+            }
+            room.version++;
+            room.vUsers = null;
+        }
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import io.kamax.matrix.bridge.voip.config.TransactionConfig;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+@Component
+public class TransactionLog {
+
+    private final Logger log = LoggerFactory.getLogger(TransactionLog.class);
+
+    private final long window;
+    private final int capacity;
+    private final Path journalPath;
+
+    // Insertion ordered, so the eldest entry is always the first to expire
+    private final LinkedHashMap<String, Long> seen = new LinkedHashMap<>();
+    // Only kept in memory: after a crash, the retry of the homeserver must be processed again
+    private final Set<String> inFlight = new HashSet<>();
+    private BufferedWriter journal;
+    private int journalLines;
+
+    public TransactionLog(TransactionConfig cfg) {
+        this.window = cfg.getWindow().toMillis();
+        this.capacity = Math.max(1, cfg.getCapacity());
+        this.journalPath = StringUtils.isBlank(cfg.getJournal()) ? null : Paths.get(cfg.getJournal());
+
+        if (Objects.nonNull(journalPath)) {
+            try {
+                load();
+                compact();
+                log.info("Transaction journal: {} entries loaded from {}", seen.size(), journalPath);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to open transaction journal at " + journalPath, e);
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(journalPath)) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        List<String> lines = Files.readAllLines(journalPath, StandardCharsets.UTF_8);
+        for (String line : lines) {
+            int sep = line.indexOf(' ');
+            if (sep < 1) {
+                continue;
+            }
+
+            try {
+                long ts = Long.parseLong(line.substring(0, sep));
+                if (ts + window > now) {
+                    seen.put(line.substring(sep + 1), ts);
+                }
+            } catch (NumberFormatException e) {
+                log.warn("Transaction journal: ignoring invalid line: {}", line);
+            }
+        }
+
+        while (seen.size() > capacity) {
+            removeEldest();
+        }
+    }
+
+    private void compact() throws IOException {
+        if (Objects.nonNull(journal)) {
+            journal.close();
+        }
+
+        Path parent = journalPath.toAbsolutePath().getParent();
+        if (Objects.nonNull(parent)) {
+            Files.createDirectories(parent);
+        }
+
+        Path tmp = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Long> entry : seen.entrySet()) {
+                w.write(entry.getValue() + " " + entry.getKey());
+                w.newLine();
+            }
+        }
+        Files.move(tmp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        journal = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        journalLines = seen.size();
+    }
+
+    private void removeEldest() {
+        Iterator<Long> it = seen.values().iterator();
+        it.next();
+        it.remove();
+    }
+
+    private void expire(long now) {
+        Iterator<Long> it = seen.values().iterator();
+        while (it.hasNext() && it.next() + window <= now) {
+            it.remove();
+        }
+    }
+
+    // Checking and marking at once, so a retry coming while the first attempt is still processed is never let through
+    public synchronized boolean begin(String id) {
+        expire(System.currentTimeMillis());
+        if (seen.containsKey(id)) {
+            return false;
+        }
+
+        if (!inFlight.add(id)) {
+            // Not acknowledged either: the homeserver will try again, and by then we know if the first attempt worked
+            throw new IllegalStateException("Transaction " + id + " is already being processed");
+        }
+
+        return true;
+    }
+
+    // Only once all of its events went through, so it is never reported as processed when it was not
+    public synchronized void commit(String id) {
+        inFlight.remove(id);
+
+        long now = System.currentTimeMillis();
+        expire(now);
+        if (Objects.nonNull(seen.putIfAbsent(id, now))) {
+            return;
+        }
+
+        if (seen.size() > capacity) {
+            removeEldest();
+        }
+
+        if (Objects.isNull(journal)) {
+            return;
+        }
+
+        try {
+            if (journalLines >= capacity * 2) {
+                compact();
+            } else {
+                journal.write(now + " " + id);
+                journal.newLine();
+                journal.flush();
+                journalLines++;
+            }
+        } catch (IOException e) {
+            log.warn("Transaction {}: unable to write to journal: {}", id, e.getMessage());
+        }
+    }
+
+    // For transactions which failed, so the retry of the homeserver is processed
+    public synchronized void abort(String id) {
+        inFlight.remove(id);
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (Objects.isNull(journal)) {
+            return;
+        }
+
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.warn("Unable to close transaction journal: {}", e.getMessage());
+        } finally {
+            journal = null;
+        }
+    }
+
+}
@@ -0,0 +1,308 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.kamax.matrix.bridge.voip.HomeView;
+import io.kamax.matrix.bridge.voip.config.TransactionConfig;
+import io.kamax.matrix.event._MatrixEvent;
+import io.kamax.matrix.event._RoomEvent;
+import io.kamax.matrix.json.GsonUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+@Component
+public class TransactionPipeline {
+
+    private final Logger log = LoggerFactory.getLogger(TransactionPipeline.class);
+
+    private final boolean enabled;
+    private final Path spool;
+    private final HomeView home;
+    private final TransactionLog transactions;
+    private final TransactionReader reader = new TransactionReader();
+
+    // Events of a room always go to the same worker, which keeps them (and the calls within) in order
+    private final List<ThreadPoolExecutor> workers = new ArrayList<>();
+    private final AtomicLong spoolIdGen = new AtomicLong(1);
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final Timer lag;
+
+    @Autowired
+    public TransactionPipeline(TransactionConfig cfg, MatrixManager mx, TransactionLog transactions, MeterRegistry registry) {
+        this(cfg, mx.forHome(null), transactions, registry);
+    }
+
+    TransactionPipeline(TransactionConfig cfg, HomeView home, TransactionLog transactions, MeterRegistry registry) {
+        this.enabled = cfg.getPipeline().isEnabled();
+        this.spool = StringUtils.isBlank(cfg.getPipeline().getSpool()) ? null : Paths.get(cfg.getPipeline().getSpool());
+        this.home = home;
+        this.transactions = transactions;
+        this.lag = Timer.builder("voip.transactions.lag")
+                .description("Time between a transaction acknowledgement and the processing of its events")
+                .register(registry);
+        registry.gauge("voip.transactions.queue", this, TransactionPipeline::getQueueDepth);
+
+        if (!enabled) {
+            return;
+        }
+
+        int queueSize = Math.max(1, cfg.getPipeline().getQueueSize());
+        for (int i = 0; i < Math.max(1, cfg.getPipeline().getWorkers()); i++) {
+            String name = "transactions-" + i;
+            workers.add(new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(queueSize), r -> new Thread(r, name)));
+        }
+
+        List<List<Runnable>> replays = new ArrayList<>();
+        workers.forEach(w -> replays.add(new ArrayList<>()));
+        if (Objects.nonNull(spool)) {
+            try {
+                Files.createDirectories(spool);
+                List<Path> files = listSpool();
+                for (Path file : files) {
+                    replay(file, replays);
+                }
+                if (!files.isEmpty()) {
+                    String name = files.get(files.size() - 1).getFileName().toString();
+                    spoolIdGen.set(Long.parseLong(StringUtils.substringBefore(name, ".")) + 1);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to open transaction spool at " + spool, e);
+            }
+        }
+
+        // Nothing is processed before the bridge is ready, and spooled events go before any new ones of their room
+        for (int i = 0; i < workers.size(); i++) {
+            List<Runnable> replay = replays.get(i);
+            workers.get(i).execute(() -> {
+                try {
+                    ready.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                replay.forEach(Runnable::run);
+            });
+        }
+
+        log.info("Transaction pipeline: {} worker(s), spool: {}", workers.size(), Objects.isNull(spool) ? "none" : spool);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getQueueDepth() {
+        return workers.stream().mapToInt(w -> w.getQueue().size() + w.getActiveCount()).sum();
+    }
+
+    private int getWorker(_MatrixEvent event) {
+        String roomId = event instanceof _RoomEvent ? ((_RoomEvent) event).getRoomId() : "";
+        return (Objects.hashCode(roomId) & Integer.MAX_VALUE) % workers.size();
+    }
+
+    private int[] getNeeded(Transaction transaction) {
+        int[] needed = new int[workers.size()];
+        transaction.getEvents().forEach(ev -> needed[getWorker(ev)]++);
+        return needed;
+    }
+
+    private boolean hasCapacity(int[] needed) {
+        for (int i = 0; i < needed.length; i++) {
+            if (needed[i] > workers.get(i).getQueue().remainingCapacity()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // The transaction is only acknowledged, and marked as processed, once it is durably spooled and queued
+    public void submit(Transaction transaction) {
+        int[] needed = getNeeded(transaction);
+        if (!hasCapacity(needed)) {
+            // The homeserver will try again later
+            throw new IllegalStateException("Transaction queue is full");
+        }
+
+        if (!transactions.begin(transaction.getId())) {
+            log.info("Transaction {} has already been processed, skipping", transaction.getId());
+            return;
+        }
+
+        Path file = null;
+        try {
+            // Writing to disk is the slow part, so it happens outside of the lock
+            file = write(transaction);
+            admit(transaction, file, needed);
+        } catch (RuntimeException e) {
+            delete(file);
+            transactions.abort(transaction.getId());
+            throw e;
+        }
+        transactions.commit(transaction.getId());
+    }
+
+    // Only one transaction is admitted at a time, so the room left in the queues cannot change until it is enqueued
+    private synchronized void admit(Transaction transaction, Path file, int[] needed) {
+        if (!hasCapacity(needed)) {
+            throw new IllegalStateException("Transaction queue is full");
+        }
+
+        enqueue(transaction, file, (i, task) -> workers.get(i).execute(task));
+    }
+
+    private Path write(Transaction transaction) {
+        if (Objects.isNull(spool) || transaction.getEvents().isEmpty()) {
+            return null;
+        }
+
+        JsonArray events = new JsonArray();
+        transaction.getEvents().forEach(ev -> events.add(ev.getJson()));
+        JsonObject body = new JsonObject();
+        body.addProperty("txn_id", transaction.getId());
+        body.add("events", events);
+
+        String name = String.format("%020d", spoolIdGen.getAndIncrement());
+        Path tmp = spool.resolve(name + ".tmp");
+        Path file = spool.resolve(name + ".json");
+        try {
+            Files.write(tmp, GsonUtil.get().toJson(body).getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.DSYNC);
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            return file;
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to spool transaction " + transaction.getId(), e);
+        }
+    }
+
+    private void enqueue(Transaction transaction, Path file, BiConsumer<Integer, Runnable> queue) {
+        long ackAt = System.nanoTime();
+        AtomicInteger remaining = new AtomicInteger(transaction.getEvents().size());
+        if (remaining.get() == 0) {
+            delete(file);
+            return;
+        }
+
+        for (_MatrixEvent event : transaction.getEvents()) {
+            queue.accept(getWorker(event), () -> {
+                lag.record(System.nanoTime() - ackAt, TimeUnit.NANOSECONDS);
+                try {
+                    home.process(event);
+                } catch (RuntimeException e) {
+                    log.error("Transaction {}: unable to process event {}", transaction.getId(), event.getId(), e);
+                } finally {
+                    setDone(file, event.getId());
+                    if (remaining.decrementAndGet() == 0) {
+                        delete(file);
+                    }
+                }
+            });
+        }
+    }
+
+    // Events already processed are recorded next to their transaction, so a restart only processes the others
+    private static Path getProgress(Path file) {
+        return file.resolveSibling(StringUtils.substringBefore(file.getFileName().toString(), ".") + ".done");
+    }
+
+    private void setDone(Path file, String eventId) {
+        if (Objects.isNull(file)) {
+            return;
+        }
+
+        synchronized (file) {
+            try {
+                Files.write(getProgress(file), (eventId + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                log.warn("Unable to record progress of spooled transaction {}: {}", file, e.getMessage());
+            }
+        }
+    }
+
+    private void delete(Path file) {
+        if (Objects.isNull(file)) {
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(getProgress(file));
+        } catch (IOException e) {
+            log.warn("Unable to remove spooled transaction {}: {}", file, e.getMessage());
+        }
+    }
+
+    private List<Path> listSpool() throws IOException {
+        try (Stream<Path> s = Files.list(spool)) {
+            return s.filter(p -> p.getFileName().toString().endsWith(".json")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private void replay(Path file, List<List<Runnable>> replays) {
+        try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Transaction transaction = reader.read(file.getFileName().toString(), r);
+
+            Path progress = getProgress(file);
+            if (Files.exists(progress)) {
+                Set<String> done = new HashSet<>(Files.readAllLines(progress, StandardCharsets.UTF_8));
+                transaction.setEvents(transaction.getEvents().stream().filter(ev -> !done.contains(ev.getId())).collect(Collectors.toList()));
+            }
+
+            log.info("Transaction spool: replaying {} event(s) of {}", transaction.getEvents().size(), transaction.getId());
+            enqueue(transaction, file, (i, task) -> replays.get(i).add(task));
+        } catch (IOException | RuntimeException e) {
+            log.error("Transaction spool: unable to replay {}", file, e);
+        }
+    }
+
+    @EventListener
+    public void onReady(ApplicationReadyEvent ev) {
+        ready.countDown();
+    }
+
+    @PreDestroy
+    public void close() {
+        workers.forEach(ThreadPoolExecutor::shutdownNow);
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import io.kamax.matrix.event._MatrixEvent;
+import io.kamax.matrix.json.GsonUtil;
+import io.kamax.matrix.json.MatrixJsonEventFactory;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+public class TransactionReader {
+
+    private final Logger log = LoggerFactory.getLogger(TransactionReader.class);
+
+    public static boolean isRelevant(String type) {
+        return StringUtils.startsWith(type, "m.call.") || "m.room.member".equals(type);
+    }
+
+    // The ID stored within the body, like in the spool, takes precedence over the given one
+    public Transaction read(String id, Reader input) throws IOException {
+        List<_MatrixEvent> events = new ArrayList<>();
+        int skipped = 0;
+
+        try (JsonReader reader = new JsonReader(input)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                if ("txn_id".equals(key) && reader.peek() == JsonToken.STRING) {
+                    id = reader.nextString();
+                    continue;
+                }
+
+                if (!"events".equals(key)) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    JsonObject event = readEvent(reader);
+                    if (Objects.isNull(event)) {
+                        skipped++;
+                    } else {
+                        events.add(MatrixJsonEventFactory.get(event));
+                    }
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        }
+
+        log.debug("Transaction {}: kept {} event(s), skipped {}", id, events.size(), skipped);
+
+        Transaction transaction = new Transaction();
+        transaction.setId(id);
+        transaction.setEvents(events);
+        return transaction;
+    }
+
+    // Returns null if the event is not relevant to us, without materializing anything past its type
+    private JsonObject readEvent(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+
+        JsonObject event = new JsonObject();
+        boolean relevant = true;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (!relevant) {
+                reader.skipValue();
+                continue;
+            }
+
+            if ("type".equals(key)) {
+                String type = reader.peek() == JsonToken.STRING ? reader.nextString() : null;
+                if (Objects.isNull(type)) {
+                    reader.skipValue();
+                }
+                relevant = isRelevant(type);
+                if (relevant) {
+                    event.addProperty(key, type);
+                } else {
+                    event = null;
+                }
+                continue;
+            }
+
+            event.add(key, GsonUtil.get().fromJson(reader, JsonElement.class));
+        }
+        reader.endObject();
+
+        if (!relevant || !event.has("type")) {
+            return null;
+        }
+
+        return event;
+    }
+
+}
@@ -24,6 +24,14 @@ import java.util.List;
 
 public class CallCandidatesEvent extends CallEvent {
 
+    public static CallCandidatesEvent from(String callId, List<Candidate> candidates) {
+        CallCandidatesEvent ev = new CallCandidatesEvent();
+        ev.setVersion(0);
+        ev.setCallId(callId);
+        ev.setCandidates(candidates);
+        return ev;
+    }
+
     public class Candidate {
 
         private String sdpMid;
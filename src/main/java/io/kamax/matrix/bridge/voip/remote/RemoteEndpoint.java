@@ -29,19 +29,22 @@ import io.kamax.matrix.bridge.voip.matrix.event.CallCandidatesEvent;
 import io.kamax.matrix.bridge.voip.matrix.event.CallHangupEvent;
 import io.kamax.matrix.bridge.voip.matrix.event.CallInviteEvent;
 import io.kamax.matrix.bridge.voip.remote.call.FreeswitchEndpoint;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class RemoteEndpoint extends GenericEndpoint {
 
     private final Logger log = LoggerFactory.getLogger(RemoteEndpoint.class);
 
     private FreeswitchEndpoint voip;
+    private AtomicBoolean closed = new AtomicBoolean(false);
 
-    public RemoteEndpoint(String userId, String channelId, String callId, FreeswitchEndpoint voip) {
-        super(userId, channelId, callId);
+    public RemoteEndpoint(String userId, String channelId, String callId, FreeswitchEndpoint voip, MeterRegistry registry) {
+        super(userId, channelId, callId, registry);
 
         this.voip = voip;
         this.voip.addListener(this::doClose); // Endpoint Listener
@@ -61,7 +64,7 @@ public class RemoteEndpoint extends GenericEndpoint {
 
             @Override
             public void onCandidates(CallCandidatesEvent ev) {
-                // FIXME support
+                inject(ev);
             }
 
             @Override
@@ -80,11 +83,15 @@ public class RemoteEndpoint extends GenericEndpoint {
     }
 
     void inject(String from, CallInviteEvent ev) {
-        fireCallEvent(l -> l.onInvite(from, ev));
+        fireCallEvent(CallListener::onInvite, from, ev);
+    }
+
+    void inject(CallCandidatesEvent ev) {
+        fireCallEvent(CallListener::onCandidates, ev);
     }
 
     void inject(CallAnswerEvent ev) {
-        fireCallEvent(l -> l.onAnswer(ev));
+        fireCallEvent(CallListener::onAnswer, ev);
     }
 
     void inject(CallHangupEvent ev) {
@@ -93,35 +100,34 @@ public class RemoteEndpoint extends GenericEndpoint {
     }
 
     @Override
-    public void handle(String from, CallInviteEvent ev) {
-        voip.handle(from, ev);
+    public CompletableFuture<Void> handle(String from, CallInviteEvent ev) {
+        return voip.handle(from, ev);
     }
 
     @Override
-    public void handle(CallCandidatesEvent ev) {
-        voip.handle(ev);
+    public CompletableFuture<Void> handle(CallCandidatesEvent ev) {
+        return voip.handle(ev);
     }
 
     @Override
-    public void handle(CallAnswerEvent ev) {
-        voip.handle(ev);
+    public CompletableFuture<Void> handle(CallAnswerEvent ev) {
+        return voip.handle(ev);
     }
 
     @Override
-    public void handle(CallHangupEvent ev) {
-        voip.handle(ev);
+    public CompletableFuture<Void> handle(CallHangupEvent ev) {
+        return voip.handle(ev);
     }
 
-    public synchronized boolean isClosed() {
-        return Objects.isNull(voip);
+    public boolean isClosed() {
+        return closed.get();
     }
 
-    private synchronized void doClose() {
-        if (isClosed()) {
+    private void doClose() {
+        if (!closed.compareAndSet(false, true)) {
             return;
         }
 
-        voip = null;
         fireEndpointEvent(EndpointListener::onClose);
     }
 
@@ -21,16 +21,16 @@
 package io.kamax.matrix.bridge.voip.remote;
 
 import io.kamax.matrix.bridge.voip.CallInfo;
+import io.kamax.matrix.bridge.voip.ListenerRegistry;
 import io.kamax.matrix.bridge.voip.remote.call.FreeswitchEndpoint;
 import io.kamax.matrix.bridge.voip.remote.call.FreeswitchListener;
-import io.kamax.matrix.bridge.voip.remote.call.FreeswitchManager;
+import io.kamax.matrix.bridge.voip.remote.call.FreeswitchPool;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -39,24 +39,27 @@ public class RemoteManager {
 
     private final Logger log = LoggerFactory.getLogger(RemoteManager.class);
 
-    private FreeswitchManager voipMgr;
+    private FreeswitchPool voipPool;
+    private MeterRegistry registry;
 
     private Map<String, RemoteEndpoint> endpoints = new ConcurrentHashMap<>();
-    private List<RemoteListener> listeners = new ArrayList<>();
+    private ListenerRegistry<RemoteListener> listeners;
 
     @Autowired
-    public RemoteManager(FreeswitchManager voipMgr) {
-        this.voipMgr = voipMgr;
-        voipMgr.addListener(new FreeswitchListener() {
+    public RemoteManager(FreeswitchPool voipPool, MeterRegistry registry) {
+        this.voipPool = voipPool;
+        this.registry = registry;
+        this.listeners = new ListenerRegistry<>("remote", registry);
+        voipPool.addListener(new FreeswitchListener() {
 
             @Override
             public void onCallCreate(FreeswitchEndpoint endpoint, CallInfo info) {
-                listeners.forEach(l -> l.onCallCreate(getEndpoint(info.getId(), endpoint.getChannelId(), endpoint.getUserId()), info));
+                listeners.fire(RemoteListener::onCallCreate, getEndpoint(info.getId(), endpoint.getChannelId(), endpoint.getUserId()), info);
             }
 
             @Override
             public void onCallDestroy(String id) {
-                listeners.forEach(l -> l.onCallDestroy(id));
+                listeners.fire(RemoteListener::onCallDestroy, id);
             }
 
         });
@@ -69,7 +72,7 @@ public class RemoteManager {
     public RemoteEndpoint getEndpoint(String callId, String channelId, String userId) {
         log.info("Call {}: Creating endpoint", callId);
         return endpoints.computeIfAbsent(callId, cId -> {
-            RemoteEndpoint endpoint = new RemoteEndpoint(userId, channelId, callId, voipMgr.makeEndpoint(userId, cId));
+            RemoteEndpoint endpoint = new RemoteEndpoint(userId, channelId, callId, voipPool.makeEndpoint(userId, cId), registry);
             endpoint.addListener(() -> {
                 log.info("Removing endpoint for Call {}: closed", callId);
                 endpoints.remove(callId);
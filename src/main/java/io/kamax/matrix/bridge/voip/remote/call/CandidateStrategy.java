@@ -0,0 +1,34 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.remote.call;
+
+public enum CandidateStrategy {
+
+    // Wait for a fixed period of silence after the last candidate
+    Fixed,
+
+    // Like Fixed, but stop waiting as soon as an end-of-candidates marker or a relay candidate is received
+    Early,
+
+    // Wait for a period of silence learned from the candidate gathering of previous calls
+    Adaptive
+
+}
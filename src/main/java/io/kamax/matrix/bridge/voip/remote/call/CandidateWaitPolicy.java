@@ -0,0 +1,101 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.remote.call;
+
+import io.kamax.matrix.bridge.voip.config.FreeswitchConfig;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CandidateWaitPolicy {
+
+    private final CandidateStrategy strategy;
+    private final long delay;
+    private final long minDelay;
+    private final long maxDelay;
+
+    // Moving average of the largest gap between two candidate batches on previous calls
+    private final AtomicLong gapEstimate;
+
+    private final Timer inviteWait;
+    private final Timer answerWait;
+
+    public CandidateWaitPolicy(FreeswitchConfig.Candidates cfg, MeterRegistry registry) {
+        this.strategy = cfg.getStrategy();
+        this.delay = cfg.getDelay();
+        this.minDelay = Math.min(cfg.getMinDelay(), cfg.getMaxDelay());
+        this.maxDelay = cfg.getMaxDelay();
+        this.gapEstimate = new AtomicLong(delay / 2);
+
+        this.inviteWait = buildTimer(registry, "invite");
+        this.answerWait = buildTimer(registry, "answer");
+    }
+
+    private Timer buildTimer(MeterRegistry registry, String step) {
+        return Timer.builder("voip.freeswitch.candidates.wait")
+                .description("Time spent gathering candidates before sending the SDP to FreeSWITCH")
+                .tags("strategy", strategy.name(), "step", step)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    public CandidateStrategy getStrategy() {
+        return strategy;
+    }
+
+    public long getSilenceDelay() {
+        if (CandidateStrategy.Adaptive.equals(strategy)) {
+            return Math.max(minDelay, Math.min(maxDelay, gapEstimate.get() * 2));
+        }
+
+        return delay;
+    }
+
+    public boolean isLast(String candidate) {
+        if (!CandidateStrategy.Early.equals(strategy)) {
+            return false;
+        }
+
+        return StringUtils.isBlank(candidate) || StringUtils.contains(candidate, " typ relay");
+    }
+
+    public boolean isComplete(String sdp) {
+        return CandidateStrategy.Early.equals(strategy) && StringUtils.contains(sdp, "a=end-of-candidates");
+    }
+
+    public void learn(long largestGap) {
+        if (CandidateStrategy.Adaptive.equals(strategy)) {
+            gapEstimate.updateAndGet(v -> v + (largestGap - v) / 4);
+        }
+    }
+
+    public void recordInvite(long waitMs) {
+        inviteWait.record(waitMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void recordAnswer(long waitMs) {
+        answerWait.record(waitMs, TimeUnit.MILLISECONDS);
+    }
+
+}
@@ -21,17 +21,29 @@
 package io.kamax.matrix.bridge.voip.remote.call;
 
 import com.google.gson.JsonObject;
+import io.kamax.matrix.bridge.voip.CallListener;
 import io.kamax.matrix.bridge.voip.CallSdpEvent;
+import io.kamax.matrix.bridge.voip.EndpointListener;
 import io.kamax.matrix.bridge.voip.GenericEndpoint;
+import io.kamax.matrix.bridge.voip.SignalingTrace;
 import io.kamax.matrix.bridge.voip.matrix.event.CallAnswerEvent;
 import io.kamax.matrix.bridge.voip.matrix.event.CallCandidatesEvent;
 import io.kamax.matrix.bridge.voip.matrix.event.CallHangupEvent;
 import io.kamax.matrix.bridge.voip.matrix.event.CallInviteEvent;
+import io.kamax.matrix.bridge.voip.sdp.IceCandidate;
+import io.kamax.matrix.bridge.voip.sdp.MediaSection;
+import io.kamax.matrix.bridge.voip.sdp.SessionDescription;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 public class FreeswitchEndpoint extends GenericEndpoint {
@@ -39,92 +51,160 @@ public class FreeswitchEndpoint extends GenericEndpoint {
     private final Logger log = LoggerFactory.getLogger(FreeswitchEndpoint.class);
 
     private FreeswitchVertoClient client;
-
-    private List<String> candidates;
-    private long candidatesLastUpdate;
-    private Timer candidateTimer;
-    private long candidateDelay = 2000;
+    private ScheduledExecutorService scheduler;
+    private SignalingTrace trace;
+    private AtomicBoolean closed = new AtomicBoolean(false);
+
+    private CandidateWaitPolicy candidatePolicy;
+    private List<IceCandidate> candidates = Collections.synchronizedList(new ArrayList<>());
+    private volatile CompletableFuture<List<IceCandidate>> candidatesReady;
+    private volatile ScheduledFuture<?> candidateTask;
+    private volatile long candidatesWaitStart;
+    private volatile long candidatesLastUpdate;
+    private volatile long candidatesLargestGap;
 
     private String fsSdp;
+    private boolean earlyMedia;
+    private volatile boolean answered;
 
-    public FreeswitchEndpoint(String userId, String channelId, String callId, FreeswitchVertoClient client) {
-        super(userId, channelId, callId);
+    public FreeswitchEndpoint(String userId, String channelId, String callId, FreeswitchVertoClient client, ScheduledExecutorService scheduler, CandidateWaitPolicy candidatePolicy, boolean earlyMedia, SignalingTrace trace, MeterRegistry registry) {
+        super(userId, channelId, callId, registry);
         this.client = client;
+        this.scheduler = scheduler;
+        this.trace = trace;
+        this.candidatePolicy = candidatePolicy;
+        this.earlyMedia = earlyMedia;
     }
 
-    private TimerTask getCandidateTask(CompletableFuture<List<String>> c) {
-        return new TimerTask() {
-
-            @Override
-            public void run() {
-                if (c.isDone()) {
-                    return;
-                }
-
-                if (isClosed()) {
-                    candidateTimer.cancel();
-                    return;
-                }
+    private void scheduleCandidateCheck(CompletableFuture<List<IceCandidate>> c, long delay) {
+        candidateTask = scheduler.schedule(() -> checkCandidates(c), delay, TimeUnit.MILLISECONDS);
+    }
 
-                long timeout = candidatesLastUpdate + candidateDelay;
-                long remaining = timeout - System.currentTimeMillis();
-                if (remaining > 0) {
-                    log.info("Waiting for candidates timeout");
-                    candidateTimer.schedule(getCandidateTask(c), remaining);
-                    return;
-                }
+    private void checkCandidates(CompletableFuture<List<IceCandidate>> c) {
+        if (c.isDone() || isClosed()) {
+            return;
+        }
 
-                c.complete(candidates);
-            }
+        long timeout = Math.max(candidatesWaitStart, candidatesLastUpdate) + candidatePolicy.getSilenceDelay();
+        long remaining = timeout - System.currentTimeMillis();
+        if (remaining > 0) {
+            log.info("Waiting for candidates timeout");
+            scheduleCandidateCheck(c, remaining);
+            return;
+        }
 
-        };
+        completeCandidates(c);
     }
 
-    private CompletableFuture<List<String>> awaitCandidates() {
-        CompletableFuture<List<String>> c = new CompletableFuture<>();
+    private void completeCandidates(CompletableFuture<List<IceCandidate>> c) {
+        if (c.complete(candidates)) {
+            candidatePolicy.learn(candidatesLargestGap);
+        }
+    }
 
-        candidates = new ArrayList<>();
-        candidateTimer = new Timer();
-        candidatesLastUpdate = 0;
-        candidateTimer.schedule(getCandidateTask(c), candidateDelay);
+    private CompletableFuture<List<IceCandidate>> awaitCandidates(String sdp) {
+        CompletableFuture<List<IceCandidate>> c = new CompletableFuture<>();
+
+        candidatesWaitStart = System.currentTimeMillis();
+        candidatesLargestGap = 0;
+        candidatesReady = c;
+        if (candidatePolicy.isComplete(sdp)) {
+            log.info("Call {}: SDP already has all candidates", getCallId());
+            completeCandidates(c);
+        } else {
+            scheduleCandidateCheck(c, candidatePolicy.getSilenceDelay());
+        }
 
         return c;
     }
 
-    private synchronized void injectCandidates(List<String> candidates) {
-        candidatesLastUpdate = System.currentTimeMillis();
+    private void injectCandidates(List<IceCandidate> candidates, boolean last) {
+        long now = System.currentTimeMillis();
+        long previous = Math.max(candidatesWaitStart, candidatesLastUpdate);
+        if (previous > 0) {
+            candidatesLargestGap = Math.max(candidatesLargestGap, now - previous);
+        }
+        candidatesLastUpdate = now;
         this.candidates.addAll(candidates);
+
+        CompletableFuture<List<IceCandidate>> c = candidatesReady;
+        if (last && Objects.nonNull(c)) {
+            log.info("Call {}: last candidate received", getCallId());
+            completeCandidates(c);
+        }
+    }
+
+    // FreeSWITCH does not trickle, its candidates all come within its SDP
+    private void fireCandidates(String sdp) {
+        CallCandidatesEvent ev = CallCandidatesEvent.from(getCallId(), new ArrayList<>());
+        for (MediaSection section : SessionDescription.parse(sdp).getMedia()) {
+            for (CharSequence value : section.getAttributes("candidate")) {
+                CallCandidatesEvent.Candidate c = ev.new Candidate();
+                c.setSdpMid(section.getMid());
+                c.setSdpMLineIndex((long) section.getIndex());
+                c.setCandidate("candidate:" + value);
+                ev.getCandidates().add(c);
+            }
+        }
+
+        if (!ev.getCandidates().isEmpty()) {
+            log.info("Call {}: {} remote candidates", getCallId(), ev.getCandidates().size());
+            fireCallEvent(CallListener::onCandidates, ev);
+        }
     }
 
     void inject(String from, CallInviteEvent ev) {
-        fireCallEvent(l -> l.onInvite(from, ev));
+        fireCallEvent(CallListener::onInvite, from, ev);
+        fireCandidates(ev.getOffer().getSdp());
     }
 
     void inject(CallSdpEvent ev) {
-        log.info("Call {}: Remote SDP:", getCallId());
         fsSdp = ev.getSdp();
-        log.info("{}", fsSdp);
+        String sdp = fsSdp;
+        trace.record(getCallId(), "verto", "remote SDP", () -> sdp);
+
+        // Matrix has no early media: we answer right away so ringback is heard and media is ready on pickup
+        if (earlyMedia) {
+            log.info("Call {}: Early media: answering", getCallId());
+            answered = true;
+            CallAnswerEvent answer = CallAnswerEvent.get(getCallId(), sdp);
+            fireCallEvent(CallListener::onAnswer, answer);
+        }
+
+        fireCandidates(sdp);
     }
 
     void inject(CallAnswerEvent ev) {
+        if (answered) {
+            log.info("Call {}: Already answered with early media", getCallId());
+            return;
+        }
+
+        answered = true;
         ev.getAnswer().setSdp(fsSdp);
-        fireCallEvent(l -> l.onAnswer(ev));
+        fireCallEvent(CallListener::onAnswer, ev);
     }
 
+    // FreeSWITCH is done with the call, whether or not the bridge still has it
     void inject(CallHangupEvent ev) {
         fireHangupEvent(ev.getReason());
+        close();
     }
 
     @Override
-    public void handle(String from, CallInviteEvent ev) {
+    public CompletableFuture<Void> handle(String from, CallInviteEvent ev) {
         log.info("Call {}: from {} to {}", getCallId(), from, getUserId());
 
         log.info("Call {}: Invite: Awaiting candidates", getCallId());
-        awaitCandidates().thenCompose(candidates -> {
+        return awaitCandidates(ev.getOffer().getSdp()).thenCompose(candidates -> {
+            candidatePolicy.recordInvite(System.currentTimeMillis() - candidatesWaitStart);
             log.info("Call {}: Invite: Adding call candidates", getCallId());
-            candidates.forEach(c -> ev.getOffer().setSdp(ev.getOffer().getSdp() + c + "\r\n"));
+            synchronized (candidates) {
+                ev.getOffer().setSdp(SessionDescription.parse(ev.getOffer().getSdp()).withCandidates(candidates));
+            }
 
-            log.info("Call {}: Local SDP:\n{}", getCallId(), ev.getOffer().getSdp());
+            String sdp = ev.getOffer().getSdp();
+            trace.record(getCallId(), "verto", "local SDP", () -> sdp);
 
             JsonObject dialogParams = new JsonObject();
             dialogParams.addProperty("callID", ev.getCallId());
@@ -152,21 +232,30 @@ public class FreeswitchEndpoint extends GenericEndpoint {
             } else {
                 log.info("Call {}: Invite to Freeswitch: OK", getCallId(), ev.getCallId());
             }
-        });
+        }).thenApply(jsonObject -> null);
     }
 
-    public void handle(CallCandidatesEvent ev) {
+    public CompletableFuture<Void> handle(CallCandidatesEvent ev) {
         log.info("Call {}: injecting {} candidates", getCallId(), ev.getCandidates().size());
-        injectCandidates(ev.getCandidates().stream().map(c -> "a=" + c.getCandidate()).collect(Collectors.toList()));
+        boolean last = ev.getCandidates().stream().anyMatch(c -> candidatePolicy.isLast(c.getCandidate()));
+        injectCandidates(ev.getCandidates().stream()
+                .filter(c -> StringUtils.isNotBlank(c.getCandidate()))
+                .map(c -> new IceCandidate(c.getSdpMid(), c.getSdpMLineIndex(), c.getCandidate()))
+                .collect(Collectors.toList()), last);
+        return CompletableFuture.completedFuture(null);
     }
 
-    public void handle(CallAnswerEvent ev) {
+    public CompletableFuture<Void> handle(CallAnswerEvent ev) {
         log.info("Call {}: Answer: Awaiting candidates", getCallId());
 
-        awaitCandidates().thenCompose(cList -> {
+        return awaitCandidates(ev.getAnswer().getSdp()).thenCompose(candidates -> {
+            candidatePolicy.recordAnswer(System.currentTimeMillis() - candidatesWaitStart);
             log.info("Call {}: Answer: Adding call candidates", getCallId());
-            candidates.forEach(c -> ev.getAnswer().setSdp(ev.getAnswer().getSdp() + c + "\r\n"));
-            log.info("Call {}: Local SDP:\n{}", getCallId(), ev.getAnswer().getSdp());
+            synchronized (candidates) {
+                ev.getAnswer().setSdp(SessionDescription.parse(ev.getAnswer().getSdp()).withCandidates(candidates));
+            }
+            String sdp = ev.getAnswer().getSdp();
+            trace.record(getCallId(), "verto", "local SDP", () -> sdp);
 
             JsonObject dialogParams = new JsonObject();
             dialogParams.addProperty("callID", ev.getCallId());
@@ -190,16 +279,16 @@ public class FreeswitchEndpoint extends GenericEndpoint {
             }
 
             injectHangup("Remote Error");
-        });
+        }).thenApply(data -> null);
     }
 
-    public void handle(CallHangupEvent ev) {
+    public CompletableFuture<Void> handle(CallHangupEvent ev) {
         JsonObject dialogParams = new JsonObject();
         dialogParams.addProperty("callID", ev.getCallId());
         JsonObject data = new JsonObject();
         data.addProperty("sessId", getChannelId());
         data.add("dialogParams", dialogParams);
-        client.sendRequest(VertoMethod.Bye.getId(), data)
+        return client.sendRequest(VertoMethod.Bye.getId(), data)
                 .whenComplete(((jsonObject, throwable) -> {
                     if (Objects.nonNull(throwable)) {
                         log.info("Call {}: Hangup to Freeswitch: FAIL", getCallId(), ev.getCallId());
@@ -212,11 +301,11 @@ public class FreeswitchEndpoint extends GenericEndpoint {
                     } else {
                         log.info("Call {}: Hangup to Freeswitch: OK", getCallId(), ev.getCallId());
                     }
-                }));
+                })).thenApply(jsonObject -> null);
     }
 
-    public synchronized boolean isClosed() {
-        return Objects.isNull(client);
+    public boolean isClosed() {
+        return closed.get();
     }
 
     private void injectHangup(String reason) {
@@ -227,13 +316,17 @@ public class FreeswitchEndpoint extends GenericEndpoint {
         fireHangupEvent(reason);
     }
 
-    public synchronized void close() {
-        if (isClosed()) {
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
             return;
         }
 
-        client = null;
-        injectHangup(null);
+        ScheduledFuture<?> task = candidateTask;
+        if (Objects.nonNull(task)) {
+            task.cancel(false);
+        }
+
+        fireEndpointEvent(EndpointListener::onClose);
     }
 
 }
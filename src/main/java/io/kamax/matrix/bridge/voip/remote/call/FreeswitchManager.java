@@ -23,18 +23,21 @@ package io.kamax.matrix.bridge.voip.remote.call;
 import com.google.gson.JsonObject;
 import io.kamax.matrix.bridge.voip.CallInfo;
 import io.kamax.matrix.bridge.voip.CallSdpEvent;
+import io.kamax.matrix.bridge.voip.ListenerRegistry;
+import io.kamax.matrix.bridge.voip.SignalingTrace;
 import io.kamax.matrix.bridge.voip.config.FreeswitchConfig;
 import io.kamax.matrix.bridge.voip.matrix.event.CallAnswerEvent;
 import io.kamax.matrix.bridge.voip.matrix.event.CallHangupEvent;
 import io.kamax.matrix.bridge.voip.matrix.event.CallInviteEvent;
 import io.kamax.matrix.json.GsonUtil;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.websocket.CloseReason;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 public class FreeswitchManager {
@@ -42,12 +45,22 @@ public class FreeswitchManager {
     private final Logger log = LoggerFactory.getLogger(FreeswitchManager.class);
 
     private String id;
+    private FreeswitchConfig.Verto verto;
     private String sessionId = UUID.randomUUID().toString();
     private FreeswitchVertoClient client;
+    private FreeswitchVertoHandler handler;
+    private AtomicInteger reconnectAttempts = new AtomicInteger();
+    private volatile boolean stopped;
+    private ScheduledThreadPoolExecutor scheduler;
+    private Executor connector;
+    private SignalingTrace trace;
+    private MeterRegistry registry;
+    private CandidateWaitPolicy candidatePolicy;
+    private boolean earlyMedia;
 
     private Map<String, FreeswitchEndpoint> endpoints = new ConcurrentHashMap<>();
 
-    private List<FreeswitchListener> listeners = new ArrayList<>();
+    private ListenerRegistry<FreeswitchListener> listeners;
 
     private JsonObject withObject(Consumer<JsonObject> consumer) {
         JsonObject obj = new JsonObject();
@@ -55,81 +68,163 @@ public class FreeswitchManager {
         return obj;
     }
 
-    public FreeswitchManager(FreeswitchConfig cfg) {
-        this.id = cfg.getVerto().getLogin();
+    public FreeswitchManager(FreeswitchConfig.Verto verto, ScheduledThreadPoolExecutor scheduler, Executor connector, CandidateWaitPolicy candidatePolicy, boolean earlyMedia, SignalingTrace trace, MeterRegistry registry) {
+        this.id = verto.getLogin();
+        this.verto = verto;
+        this.scheduler = scheduler;
+        this.connector = connector;
+        this.trace = trace;
+        this.registry = registry;
+        this.listeners = new ListenerRegistry<>("freeswitch", registry);
+        this.candidatePolicy = candidatePolicy;
+        this.earlyMedia = earlyMedia;
+        this.client = new FreeswitchVertoClient(scheduler, verto);
 
-        try {
-            client = new FreeswitchVertoClient();
-            client.connect(cfg.getVerto().getUrl(), new FreeswitchVertoHandler() {
+        handler = new FreeswitchVertoHandler() {
 
-                @Override
-                public void onClose(FreeswitchVertoClient client, CloseReason reason) {
-                    log.info("Freeswitch endpoint: closing");
-                    close();
-                }
+            @Override
+            public void onClose(FreeswitchVertoClient client, CloseReason reason) {
+                log.info("Freeswitch endpoint: connection to {} closed: {}", verto.getUrl(), reason.getReasonPhrase());
+                scheduleReconnect();
+            }
+
+            @Override
+            public void onMessage(String method, JsonObject params, FreeswitchVertoClient.Callback callback) {
+                log.debug("Incoming {}", method);
+                GsonUtil.findString(params, "callID").ifPresent(callId -> trace.record(callId, "verto", "in " + method, params::toString));
+                if (VertoMethod.Invite.matches(method)) {
+                    String callId = GsonUtil.getStringOrThrow(params, "callID");
+                    String caller = GsonUtil.getStringOrThrow(params, "caller_id_number");
+                    String callee = GsonUtil.findString(params, "callee_id_number").orElse(id);
+                    String sdp = GsonUtil.getStringOrThrow(params, "sdp");
 
-                @Override
-                public void onMessage(String method, JsonObject params, FreeswitchVertoClient.Callback callback) {
-                    log.info("Incoming {} with {}", method, params);
-                    if (VertoMethod.Invite.matches(method)) {
-                        String callId = GsonUtil.getStringOrThrow(params, "callID");
-                        String caller = GsonUtil.getStringOrThrow(params, "caller_id_number");
-                        String callee = GsonUtil.findString(params, "callee_id_number").orElse(id);
-                        String sdp = GsonUtil.getStringOrThrow(params, "sdp");
-
-                        CallInfo info = new CallInfo(callId, sessionId, caller, callee, sdp);
-
-                        FreeswitchEndpoint endpoint = makeEndpoint(caller, callId);
-                        listeners.forEach(l -> l.onCallCreate(endpoint, info));
-
-                        if (!endpoint.isClosed()) {
-                            CallInviteEvent cEv = CallInviteEvent.get(callId, sdp, 60 * 1000);
-                            endpoint.inject(caller, cEv);
-                        } else {
-                            log.info("Call was cancelled by bridge");
-                        }
+                    CallInfo info = new CallInfo(callId, sessionId, caller, callee, sdp);
+
+                    FreeswitchEndpoint endpoint = makeEndpoint(caller, callId);
+                    if (!listeners.fire(FreeswitchListener::onCallCreate, endpoint, info)) {
+                        // No one may be bridging the call, so it would ring forever
+                        log.warn("Call {}: unable to set up the call, hanging up", callId);
+                        endpoint.close();
+                    } else if (!endpoint.isClosed()) {
+                        CallInviteEvent cEv = CallInviteEvent.get(callId, sdp, 60 * 1000);
+                        endpoint.inject(caller, cEv);
+                    } else {
+                        log.info("Call was cancelled by bridge");
                     }
+                }
 
-                    if (VertoMethod.Media.matches(method)) {
-                        String callId = GsonUtil.getStringOrThrow(params, "callID");
-                        getEndpoint(callId).inject(CallSdpEvent.get(
+                if (VertoMethod.Media.matches(method)) {
+                    String callId = GsonUtil.getStringOrThrow(params, "callID");
+                    FreeswitchEndpoint endpoint = getEndpoint(callId);
+                    if (Objects.isNull(endpoint)) {
+                        log.info("Call {}: media for unknown call, ignoring", callId);
+                    } else {
+                        endpoint.inject(CallSdpEvent.get(
                                 callId,
                                 GsonUtil.findString(params, "sdp").orElse(""))
                         );
                     }
+                }
 
-                    if (VertoMethod.Answer.matches(method)) {
-                        String callId = GsonUtil.getStringOrThrow(params, "callID");
+                if (VertoMethod.Answer.matches(method)) {
+                    String callId = GsonUtil.getStringOrThrow(params, "callID");
+                    FreeswitchEndpoint endpoint = getEndpoint(callId);
+                    if (Objects.isNull(endpoint)) {
+                        log.info("Call {}: answer for unknown call, ignoring", callId);
+                    } else {
                         CallAnswerEvent cEv = new CallAnswerEvent();
                         cEv.setCallId(callId);
-                        getEndpoint(callId).inject(cEv);
+                        endpoint.inject(cEv);
                     }
+                }
 
-                    if (VertoMethod.Bye.matches(method)) {
-                        String callId = GsonUtil.getStringOrThrow(params, "callID");
-                        String cause = GsonUtil.getStringOrNull(params, "cause");
-                        if ("ORIGINATOR_CANCEL".equals(cause) || "NORMAL_CLEARING".equals(cause)) cause = null;
-                        getEndpoint(callId).inject(CallHangupEvent.from(
+                if (VertoMethod.Attach.matches(method)) {
+                    String callId = GsonUtil.getStringOrThrow(params, "callID");
+                    if (Objects.isNull(getEndpoint(callId))) {
+                        log.warn("Call {}: attach request for unknown call, ignoring", callId);
+                    } else {
+                        log.info("Call {}: re-attached after reconnection", callId);
+                        callback.sendAnswer(new JsonObject());
+                    }
+                }
+
+                if (VertoMethod.Bye.matches(method)) {
+                    String callId = GsonUtil.getStringOrThrow(params, "callID");
+                    String cause = GsonUtil.getStringOrNull(params, "cause");
+                    if ("ORIGINATOR_CANCEL".equals(cause) || "NORMAL_CLEARING".equals(cause)) cause = null;
+                    FreeswitchEndpoint endpoint = getEndpoint(callId);
+                    if (Objects.isNull(endpoint)) {
+                        // Typically a call we already hung up on our side
+                        log.info("Call {}: hangup for unknown call, ignoring", callId);
+                    } else {
+                        endpoint.inject(CallHangupEvent.from(
                                 callId,
                                 cause
                         ));
                     }
+                    callback.sendAnswer(withObject(obj -> {
+                        obj.addProperty("callID", callId);
+                        obj.addProperty("message", "CALL ENDED");
+                    }));
                 }
+            }
+
+        };
+    }
+
+    private CompletableFuture<JsonObject> connect() {
+        client.connect(verto.getUrl(), handler);
+
+        log.info("Freeswitch login: start on {}", verto.getUrl());
+        return client.login(withObject(obj -> {
+            obj.addProperty("login", verto.getLogin());
+            obj.addProperty("passwd", verto.getPassword());
+            obj.addProperty("sessId", sessionId); // Same session on reconnection, so FreeSWITCH can re-attach live calls
+        })).thenApply(obj -> {
+            log.debug("Freeswitch login: message: {}", obj);
+            log.info("Freeswitch login: success on {}", verto.getUrl());
+            reconnectAttempts.set(0);
+            return obj;
+        });
+    }
+
+    private void scheduleReconnect() {
+        if (stopped) {
+            return;
+        }
+
+        int attempt = reconnectAttempts.getAndIncrement();
+        long maxDelay = Math.min(verto.getReconnectMaxDelay(), verto.getReconnectDelay() << Math.min(attempt, 16));
+        long delay = maxDelay / 2 + ThreadLocalRandom.current().nextLong(maxDelay / 2 + 1);
+        log.info("Freeswitch: reconnecting in {} ms (attempt #{})", delay, attempt + 1);
+        // Connecting blocks, so it must not hold the timer thread which all calls rely on
+        scheduler.schedule(() -> connector.execute(this::reconnect), delay, TimeUnit.MILLISECONDS);
+    }
 
+    private void reconnect() {
+        if (stopped || !client.isClosed()) {
+            return;
+        }
+
+        start();
+    }
+
+    public CompletableFuture<JsonObject> start() {
+        try {
+            return connect().whenComplete((obj, t) -> {
+                if (Objects.nonNull(t)) {
+                    // Closing the connection will schedule the next attempt
+                    log.warn("Freeswitch login: error on {}: {}", verto.getUrl(), t.getMessage());
+                    client.close();
+                }
             });
+        } catch (RuntimeException e) {
+            log.warn("Freeswitch: unable to connect to {}: {}", verto.getUrl(), e.getMessage());
+            scheduleReconnect();
 
-            log.info("Freeswitch login: start");
-            client.sendRequest("login", withObject(obj -> {
-                obj.addProperty("login", cfg.getVerto().getLogin());
-                obj.addProperty("passwd", cfg.getVerto().getPassword());
-                obj.addProperty("sessId", sessionId);
-            })).thenAccept(obj -> {
-                log.debug("Freeswitch login: message: {}", obj);
-                log.info("Freeswitch login: success");
-            }).toCompletableFuture().get();
-        } catch (InterruptedException | ExecutionException e) {
-            log.info("Freeswitch login: error");
-            throw new RuntimeException(e instanceof ExecutionException ? e.getCause() : e);
+            CompletableFuture<JsonObject> f = new CompletableFuture<>();
+            f.completeExceptionally(e);
+            return f;
         }
     }
 
@@ -137,13 +232,34 @@ public class FreeswitchManager {
         listeners.add(listener);
     }
 
+    public String getUrl() {
+        return verto.getUrl();
+    }
+
+    public int getWeight() {
+        return verto.getWeight();
+    }
+
     public boolean isClosed() {
-        return Objects.isNull(client) || client.isClosed();
+        return client.isClosed();
+    }
+
+    // Connected and logged in
+    public boolean isReady() {
+        return client.isReady();
+    }
+
+    public int getCallCount() {
+        return endpoints.size();
+    }
+
+    public int getPendingRequestCount() {
+        return client.getPendingCount();
     }
 
     public FreeswitchEndpoint makeEndpoint(String destination, String callId) {
         return endpoints.computeIfAbsent(callId, cId -> {
-            FreeswitchEndpoint endpoint = new FreeswitchEndpoint(destination, sessionId, callId, client);
+            FreeswitchEndpoint endpoint = new FreeswitchEndpoint(destination, sessionId, callId, client, scheduler, candidatePolicy, earlyMedia, trace, registry);
             endpoint.addListener(() -> {
                 log.info("Removing endpoint for Call {}: closed", callId);
                 endpoints.remove(callId);
@@ -156,13 +272,13 @@ public class FreeswitchManager {
         return endpoints.get(callId);
     }
 
-    public synchronized void close() {
-        if (isClosed()) {
-            return;
-        }
+    FreeswitchVertoHandler getHandler() {
+        return handler;
+    }
 
+    public void close() {
+        stopped = true;
         client.close();
-        client = null;
     }
 
 }
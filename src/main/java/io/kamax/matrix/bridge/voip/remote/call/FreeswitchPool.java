@@ -0,0 +1,188 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.remote.call;
+
+import io.kamax.matrix.bridge.voip.SignalingTrace;
+import io.kamax.matrix.bridge.voip.config.FreeswitchConfig;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+public class FreeswitchPool {
+
+    private final Logger log = LoggerFactory.getLogger(FreeswitchPool.class);
+
+    private VertoRouting routing;
+    private ScheduledThreadPoolExecutor scheduler;
+    private ExecutorService connector;
+    private List<FreeswitchManager> managers = new ArrayList<>();
+
+    public FreeswitchPool(FreeswitchConfig cfg, SignalingTrace trace, MeterRegistry registry) {
+        this.routing = cfg.getRouting();
+
+        List<FreeswitchConfig.Verto> nodes = cfg.getNodes();
+        if (nodes.isEmpty()) {
+            nodes = Collections.singletonList(cfg.getVerto());
+        }
+
+        // One timer thread for all calls of all nodes, whatever the call volume
+        scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "freeswitch-timers");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+
+        // Connecting blocks until the node answers or the attempt times out, so each node gets its own thread for it
+        AtomicInteger connectorIdGen = new AtomicInteger(1);
+        connector = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "freeswitch-connect-" + connectorIdGen.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        registry.gauge("voip.freeswitch.timers", scheduler, s -> s.getQueue().size());
+
+        CandidateWaitPolicy candidatePolicy = new CandidateWaitPolicy(cfg.getCandidates(), registry);
+        for (FreeswitchConfig.Verto node : nodes) {
+            if (StringUtils.isBlank(node.getUrl())) {
+                throw new RuntimeException("FreeSWITCH Verto URL is not set");
+            }
+
+            FreeswitchManager mgr = new FreeswitchManager(node, scheduler, connector, candidatePolicy, cfg.isEarlyMedia(), trace, registry);
+            registry.gauge("voip.freeswitch.calls", Tags.of("node", node.getUrl()), mgr, FreeswitchManager::getCallCount);
+            registry.gauge("voip.freeswitch.rpc.pending", Tags.of("node", node.getUrl()), mgr, FreeswitchManager::getPendingRequestCount);
+            managers.add(mgr);
+        }
+
+        // Connecting is done in the background so startup never waits on FreeSWITCH, see isReady() for its state
+        managers.forEach(mgr -> connector.execute(mgr::start));
+        log.info("Freeswitch: connecting to {} node(s), routing calls by {}", managers.size(), routing);
+    }
+
+    public List<FreeswitchManager> getManagers() {
+        return Collections.unmodifiableList(managers);
+    }
+
+    public boolean isReady() {
+        return managers.stream().anyMatch(FreeswitchManager::isReady);
+    }
+
+    public void addListener(FreeswitchListener listener) {
+        managers.forEach(mgr -> mgr.addListener(listener));
+    }
+
+    private FreeswitchManager byWeight(List<FreeswitchManager> nodes) {
+        long total = nodes.stream().mapToLong(mgr -> Math.max(0, mgr.getWeight())).sum();
+        if (total == 0) {
+            return nodes.get(ThreadLocalRandom.current().nextInt(nodes.size()));
+        }
+
+        long pick = ThreadLocalRandom.current().nextLong(total);
+        for (FreeswitchManager mgr : nodes) {
+            pick -= Math.max(0, mgr.getWeight());
+            if (pick < 0) {
+                return mgr;
+            }
+        }
+
+        return nodes.get(nodes.size() - 1);
+    }
+
+    private static long score(String node, String destination) {
+        // Final mix of MurmurHash3, so close inputs still give unrelated scores
+        long h = node.hashCode() * 0x9E3779B97F4A7C15L + destination.hashCode();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private FreeswitchManager byHash(List<FreeswitchManager> nodes, String destination) {
+        // Rendezvous hashing: only the callees of a failed node move elsewhere
+        return nodes.stream().max(Comparator.comparingLong(mgr -> score(mgr.getUrl(), destination))).orElseThrow(IllegalStateException::new);
+    }
+
+    private FreeswitchManager select(String destination) {
+        List<FreeswitchManager> nodes = managers.stream().filter(FreeswitchManager::isReady).collect(Collectors.toList());
+        if (nodes.isEmpty()) {
+            throw new IllegalStateException("No FreeSWITCH node is available");
+        }
+
+        if (nodes.size() == 1) {
+            return nodes.get(0);
+        }
+
+        switch (routing) {
+            case Weighted:
+                return byWeight(nodes);
+            case Hash:
+                return byHash(nodes, destination);
+            default:
+                return nodes.stream().min(Comparator.comparingInt(FreeswitchManager::getCallCount)).orElseThrow(IllegalStateException::new);
+        }
+    }
+
+    public FreeswitchEndpoint getEndpoint(String callId) {
+        for (FreeswitchManager mgr : managers) {
+            FreeswitchEndpoint endpoint = mgr.getEndpoint(callId);
+            if (Objects.nonNull(endpoint)) {
+                return endpoint;
+            }
+        }
+
+        return null;
+    }
+
+    public FreeswitchEndpoint makeEndpoint(String destination, String callId) {
+        // A call stays on the node it was started on
+        FreeswitchEndpoint endpoint = getEndpoint(callId);
+        if (Objects.nonNull(endpoint)) {
+            return endpoint;
+        }
+
+        FreeswitchManager mgr = select(destination);
+        log.info("Call {}: routed to {}", callId, mgr.getUrl());
+        return mgr.makeEndpoint(destination, callId);
+    }
+
+    public void close() {
+        managers.forEach(FreeswitchManager::close);
+        connector.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+}
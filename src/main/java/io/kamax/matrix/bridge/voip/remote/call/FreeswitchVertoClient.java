@@ -21,6 +21,7 @@
 package io.kamax.matrix.bridge.voip.remote.call;
 
 import com.google.gson.JsonObject;
+import io.kamax.matrix.bridge.voip.config.FreeswitchConfig;
 import io.kamax.matrix.json.GsonUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,11 +29,8 @@ import org.slf4j.LoggerFactory;
 import javax.websocket.*;
 import java.io.IOException;
 import java.net.URI;
-import java.util.Map;
-import java.util.Objects;
-import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 
 @ClientEndpoint
@@ -48,10 +46,26 @@ public class FreeswitchVertoClient {
 
     private final Logger log = LoggerFactory.getLogger(FreeswitchVertoClient.class);
 
-    private Session session;
+    private final VertoCodec codec = new VertoCodec();
+
+    private volatile Session session;
     private FreeswitchVertoHandler handler;
-    private Map<Long, CompletableFuture<JsonObject>> callbacks;
-    private AtomicLong requestIdGen;
+    private ScheduledExecutorService scheduler;
+    private long timeout;
+    private Map<String, Long> timeouts;
+    private Map<Long, CompletableFuture<JsonObject>> callbacks = new ConcurrentHashMap<>();
+    private Map<Long, CompletableFuture<Void>> writes = new ConcurrentHashMap<>();
+    private AtomicLong requestIdGen = new AtomicLong(1);
+
+    // Messages sent while we are not logged in are held until we are
+    private VertoWriter writer;
+
+    public FreeswitchVertoClient(ScheduledExecutorService scheduler, FreeswitchConfig.Verto cfg) {
+        this.scheduler = scheduler;
+        this.timeout = cfg.getTimeout();
+        this.timeouts = new HashMap<>(cfg.getTimeouts());
+        this.writer = new VertoWriter(cfg.getQueueSize(), cfg.getBatchSize());
+    }
 
     public void connect(String uriRaw, FreeswitchVertoHandler handler) {
         if (!isClosed()) {
@@ -61,8 +75,6 @@ public class FreeswitchVertoClient {
         URI uri = URI.create(Objects.requireNonNull(uriRaw));
 
         this.handler = Objects.requireNonNull(handler);
-        this.requestIdGen = new AtomicLong(1);
-        this.callbacks = new ConcurrentHashMap<>();
 
         try {
             log.info("Connecting to {}", uriRaw);
@@ -75,35 +87,60 @@ public class FreeswitchVertoClient {
     @OnOpen
     public void onOpen(Session session) {
         this.session = session;
+        writer.open(session);
     }
 
     @OnClose
     public void onClose(Session session, CloseReason reason) {
         this.session = null;
+        writer.close();
+
+        // Answers to requests already sent will never come on a new connection, the others are sent after the next login
+        List<Long> ids = new ArrayList<>(callbacks.keySet());
+        ids.forEach(id -> {
+            CompletableFuture<Void> written = writes.get(id);
+            if (Objects.isNull(written) || !written.isDone()) {
+                return;
+            }
+
+            CompletableFuture<JsonObject> callback = callbacks.remove(id);
+            if (Objects.nonNull(callback)) {
+                callback.completeExceptionally(new IllegalStateException("Websocket was closed: " + reason.getReasonPhrase()));
+            }
+        });
+
         this.handler.onClose(this, reason);
     }
 
     @OnMessage
     public void onMessage(String message) {
-        log.info("Incoming message: {}", message);
-        JsonObject obj = GsonUtil.parseObj(message);
-
-        // TODO should use some JsonRpc object instead
-        long msgId = GsonUtil.getLong(obj, "id");
-        Optional<JsonObject> result = GsonUtil.findObj(obj, "result");
-        Optional<JsonObject> errorOpt = GsonUtil.findObj(obj, "error");
-        if (errorOpt.isPresent()) {
-            JsonObject error = errorOpt.get();
-            long errCode = GsonUtil.getLong(error, "code");
-            String errMsg = GsonUtil.getStringOrNull(error, "message");
-            callbacks.get(msgId).completeExceptionally(new RpcException(errCode, errMsg, error));
-        } else if (result.isPresent()) {
-            callbacks.get(msgId).complete(result.get());
+        log.debug("Incoming message: {}", message);
+        for (VertoMessage msg : codec.read(message, callbacks::containsKey)) {
+            onMessage(msg);
+        }
+    }
+
+    private void onMessage(VertoMessage msg) {
+        long msgId = msg.getId();
+        if (VertoMessage.Type.Error.equals(msg.getType())) {
+            CompletableFuture<JsonObject> callback = callbacks.remove(msgId);
+            if (Objects.isNull(callback)) {
+                log.warn("Error for unknown or timed out request {}: {} - {}", msgId, msg.getCode(), msg.getMessage());
+            } else {
+                callback.completeExceptionally(new RpcException(msg.getCode(), msg.getMessage(), msg.getBody()));
+            }
+        } else if (VertoMessage.Type.Result.equals(msg.getType())) {
+            CompletableFuture<JsonObject> callback = callbacks.remove(msgId);
+            if (Objects.isNull(callback)) {
+                log.warn("Result for unknown or timed out request {}", msgId);
+            } else {
+                callback.complete(msg.getBody());
+            }
         } else {
-            String method = GsonUtil.getStringOrThrow(obj, "method");
-            JsonObject params = GsonUtil.getObj(obj, "params");
+            boolean isRequest = VertoMessage.Type.Request.equals(msg.getType());
+            JsonObject params = Objects.isNull(msg.getBody()) ? new JsonObject() : msg.getBody();
             try {
-                handler.onMessage(method, params, new Callback() {
+                handler.onMessage(msg.getMethod(), params, new Callback() {
 
                     @Override
                     public long getId() {
@@ -112,53 +149,84 @@ public class FreeswitchVertoClient {
 
                     @Override
                     public void sendAnswer(JsonObject obj) {
-                        JsonObject data = new JsonObject();
-                        data.addProperty("jsonrpc", "2.0");
-                        data.addProperty("id", msgId);
-                        data.add("result", obj);
-                        send(data);
+                        if (isRequest) {
+                            answer(codec.write(VertoMessage.result(msgId, obj)));
+                        }
                     }
 
                 });
             } catch (RuntimeException e) {
                 log.warn("Error when processing incoming message", e);
-                JsonObject error = new JsonObject();
-                error.addProperty("message", e.getMessage());
-                JsonObject data = new JsonObject();
-                data.addProperty("jsonrpc", "2.0");
-                data.addProperty("id", msgId);
-                data.add("error", error);
-                send(data);
+                if (isRequest) {
+                    answer(codec.write(VertoMessage.error(msgId, 0, e.getMessage(), null)));
+                }
             }
         }
     }
 
-    public CompletableFuture<JsonObject> sendRequest(String method, JsonObject params) {
+    private CompletableFuture<JsonObject> sendRequest(String method, JsonObject params, boolean now) {
         long id = requestIdGen.getAndIncrement();
         CompletableFuture<JsonObject> callback = new CompletableFuture<>();
         callbacks.put(id, callback);
 
-        JsonObject data = new JsonObject();
-        data.addProperty("jsonrpc", "2.0");
-        data.addProperty("id", id);
-        data.addProperty("method", method);
-        data.add("params", params);
-        send(data);
+        long deadline = timeouts.getOrDefault(method, timeout);
+        ScheduledFuture<?> timer = scheduler.schedule(() -> {
+            CompletableFuture<JsonObject> expired = callbacks.remove(id);
+            if (Objects.nonNull(expired)) {
+                // Timed out first, or cancelling the write would fail the request with a cancellation instead
+                CompletableFuture<Void> written = writes.get(id);
+                expired.completeExceptionally(new TimeoutException("No answer to " + method + " after " + deadline + " ms"));
+
+                // A request nobody waits for anymore must not reach FreeSWITCH
+                boolean unsent = Objects.nonNull(written) && writer.cancel(written);
+                log.warn("Request {} ({}) timed out after {} ms{}", id, method, deadline, unsent ? ", before being sent" : "");
+            }
+        }, deadline, TimeUnit.MILLISECONDS);
+
+        CompletableFuture<Void> written = send(codec.write(VertoMessage.request(id, method, params)), now);
+        writes.put(id, written);
+        callback.whenComplete((r, t) -> {
+            timer.cancel(false);
+            writes.remove(id);
+        });
+        written.whenComplete((v, t) -> {
+            if (Objects.nonNull(t)) {
+                callbacks.remove(id);
+                callback.completeExceptionally(t);
+            }
+        });
 
         return callback;
     }
 
-    public void send(String message) {
-        try {
-            log.info("Outgoing message: {}", message);
-            getSession().getBasicRemote().sendText(message);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    public CompletableFuture<JsonObject> sendRequest(String method, JsonObject params) {
+        return sendRequest(method, params, false);
+    }
+
+    public CompletableFuture<JsonObject> login(JsonObject params) {
+        return sendRequest("login", params, true).thenApply(obj -> {
+            log.info("Logged in, sending {} queued message(s)", writer.size());
+            writer.setReady();
+            return obj;
+        });
+    }
+
+    private CompletableFuture<Void> send(String message, boolean now) {
+        log.debug("Outgoing message: {}", message);
+        return writer.write(message, now);
     }
 
-    public void send(JsonObject message) {
-        send(GsonUtil.get().toJson(message));
+    private CompletableFuture<Void> answer(String message) {
+        log.debug("Outgoing answer: {}", message);
+        return writer.answer(message);
+    }
+
+    public CompletableFuture<Void> send(String message) {
+        return send(message, false);
+    }
+
+    public CompletableFuture<Void> send(JsonObject message) {
+        return send(GsonUtil.get().toJson(message));
     }
 
     private Session getSession() {
@@ -173,6 +241,14 @@ public class FreeswitchVertoClient {
         return Objects.isNull(session);
     }
 
+    public boolean isReady() {
+        return writer.isReady();
+    }
+
+    public int getPendingCount() {
+        return callbacks.size();
+    }
+
     public void close() {
         if (isClosed()) {
             return;
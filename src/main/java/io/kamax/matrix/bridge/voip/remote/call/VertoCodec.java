@@ -0,0 +1,178 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.remote.call;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import io.kamax.matrix.json.GsonUtil;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.LongPredicate;
+
+public class VertoCodec {
+
+    // Buffers which grew bigger than this, for a large SDP per ex, are not kept around
+    private static final int maxRetained = 64 * 1024;
+
+    private final JsonParser parser = new JsonParser();
+    private final ThreadLocal<StringWriter> buffers = ThreadLocal.withInitial(() -> new StringWriter(4096));
+
+    private JsonObject readObject(JsonReader reader) {
+        JsonElement el = parser.parse(reader);
+        return el.isJsonObject() ? el.getAsJsonObject() : null;
+    }
+
+    private VertoMessage readMessage(JsonReader reader, LongPredicate expected) throws IOException {
+        long id = -1;
+        boolean hasId = false;
+        boolean hasResult = false;
+        String method = null;
+        JsonObject body = null;
+        JsonObject error = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                    } else {
+                        id = reader.nextLong();
+                        hasId = true;
+                    }
+                    break;
+                case "method":
+                    method = reader.nextString();
+                    break;
+                case "params":
+                    body = readObject(reader);
+                    break;
+                case "result":
+                    hasResult = true;
+                    if (hasId && !expected.test(id)) {
+                        // Nobody is waiting for it anymore, no need to build it
+                        reader.skipValue();
+                    } else {
+                        body = readObject(reader);
+                    }
+                    break;
+                case "error":
+                    error = readObject(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (Objects.nonNull(error)) {
+            long code = error.has("code") ? error.get("code").getAsLong() : 0;
+            String message = error.has("message") ? error.get("message").getAsString() : null;
+            return VertoMessage.error(id, code, message, error);
+        }
+
+        if (Objects.nonNull(method)) {
+            return hasId ? VertoMessage.request(id, method, body) : VertoMessage.notification(method, body);
+        }
+
+        if (hasResult && hasId) {
+            return VertoMessage.result(id, body);
+        }
+
+        throw new IllegalArgumentException("Not a JSON-RPC message");
+    }
+
+    // Only answers for which the predicate matches their ID are fully parsed
+    public List<VertoMessage> read(String frame, LongPredicate expected) {
+        try (JsonReader reader = new JsonReader(new StringReader(frame))) {
+            List<VertoMessage> messages = new ArrayList<>(1);
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    messages.add(readMessage(reader, expected));
+                }
+                reader.endArray();
+            } else {
+                messages.add(readMessage(reader, expected));
+            }
+
+            return messages;
+        } catch (IOException | JsonParseException | IllegalStateException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid JSON-RPC frame", e);
+        }
+    }
+
+    public String write(VertoMessage msg) {
+        StringWriter buffer = buffers.get();
+        buffer.getBuffer().setLength(0);
+
+        try {
+            JsonWriter writer = new JsonWriter(buffer);
+            writer.beginObject();
+            writer.name("jsonrpc").value("2.0");
+            if (msg.getType() != VertoMessage.Type.Notification) {
+                writer.name("id").value(msg.getId());
+            }
+
+            switch (msg.getType()) {
+                case Request:
+                case Notification:
+                    writer.name("method").value(msg.getMethod());
+                    writer.name("params");
+                    GsonUtil.get().toJson(Objects.isNull(msg.getBody()) ? new JsonObject() : msg.getBody(), writer);
+                    break;
+                case Result:
+                    writer.name("result");
+                    GsonUtil.get().toJson(Objects.isNull(msg.getBody()) ? new JsonObject() : msg.getBody(), writer);
+                    break;
+                case Error:
+                    writer.name("error").beginObject();
+                    if (msg.getCode() != 0) {
+                        writer.name("code").value(msg.getCode());
+                    }
+                    writer.name("message").value(msg.getMessage());
+                    writer.endObject();
+                    break;
+            }
+            writer.endObject();
+            writer.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        String frame = buffer.toString();
+        if (buffer.getBuffer().capacity() > maxRetained) {
+            buffers.remove();
+        }
+        return frame;
+    }
+
+}
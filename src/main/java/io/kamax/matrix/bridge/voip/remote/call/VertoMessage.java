@@ -0,0 +1,101 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.remote.call;
+
+import com.google.gson.JsonObject;
+
+public class VertoMessage {
+
+    public enum Type {
+
+        Request,
+        Notification,
+        Result,
+        Error
+
+    }
+
+    public static VertoMessage request(long id, String method, JsonObject params) {
+        VertoMessage msg = new VertoMessage(Type.Request, id);
+        msg.method = method;
+        msg.body = params;
+        return msg;
+    }
+
+    public static VertoMessage notification(String method, JsonObject params) {
+        VertoMessage msg = new VertoMessage(Type.Notification, -1);
+        msg.method = method;
+        msg.body = params;
+        return msg;
+    }
+
+    public static VertoMessage result(long id, JsonObject result) {
+        VertoMessage msg = new VertoMessage(Type.Result, id);
+        msg.body = result;
+        return msg;
+    }
+
+    public static VertoMessage error(long id, long code, String message, JsonObject error) {
+        VertoMessage msg = new VertoMessage(Type.Error, id);
+        msg.code = code;
+        msg.message = message;
+        msg.body = error;
+        return msg;
+    }
+
+    private Type type;
+    private long id;
+    private String method;
+    private JsonObject body;
+    private long code;
+    private String message;
+
+    private VertoMessage(Type type, long id) {
+        this.type = type;
+        this.id = id;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    // Params of a request, result of an answer, or error object
+    public JsonObject getBody() {
+        return body;
+    }
+
+    public long getCode() {
+        return code;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+}
@@ -27,7 +27,8 @@ public enum VertoMethod {
     Invite("verto.invite"),
     Media("verto.media"),
     Answer("verto.answer"),
-    Bye("verto.bye");
+    Bye("verto.bye"),
+    Attach("verto.attach");
 
     private String id;
 
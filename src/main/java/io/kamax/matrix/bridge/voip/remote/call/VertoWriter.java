@@ -0,0 +1,192 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.remote.call;
+
+import javax.websocket.Session;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+// Writes on the websocket without blocking the caller, one frame in flight at a time
+public class VertoWriter {
+
+    private class Frame {
+
+        private String text;
+        private boolean answer;
+        private CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Frame(String text, boolean answer) {
+            this.text = text;
+            this.answer = answer;
+        }
+
+    }
+
+    private final int capacity;
+    private final int batchSize;
+
+    // Frames which must go out as soon as we are connected, like the login
+    private final Deque<Frame> urgent = new ArrayDeque<>();
+    // Frames which must wait until we are logged in
+    private final Deque<Frame> queue = new ArrayDeque<>();
+
+    private Session session;
+    private boolean ready;
+    private boolean inFlight;
+
+    public VertoWriter(int capacity, int batchSize) {
+        this.capacity = capacity;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public synchronized void open(Session session) {
+        this.session = session;
+        this.ready = false;
+        this.inFlight = false;
+    }
+
+    public void setReady() {
+        synchronized (this) {
+            ready = true;
+        }
+
+        drain();
+    }
+
+    public synchronized boolean isReady() {
+        return ready;
+    }
+
+    // Queued requests are sent once we are logged in again, but urgent frames and answers belonged to that connection only
+    public void close() {
+        List<Frame> dropped;
+        synchronized (this) {
+            session = null;
+            ready = false;
+            inFlight = false;
+            dropped = new ArrayList<>(urgent);
+            urgent.clear();
+            queue.stream().filter(f -> f.answer).forEach(dropped::add);
+            queue.removeIf(f -> f.answer);
+        }
+
+        dropped.forEach(f -> f.future.completeExceptionally(new IllegalStateException("Websocket was closed before sending")));
+    }
+
+    public synchronized int size() {
+        return urgent.size() + queue.size();
+    }
+
+    public CompletableFuture<Void> write(String text, boolean now) {
+        return add(new Frame(text, false), now);
+    }
+
+    // Answers to requests of FreeSWITCH, which only make sense on the connection they came from
+    public CompletableFuture<Void> answer(String text) {
+        return add(new Frame(text, true), false);
+    }
+
+    private CompletableFuture<Void> add(Frame frame, boolean now) {
+        synchronized (this) {
+            if (urgent.size() + queue.size() >= capacity) {
+                frame.future.completeExceptionally(new IllegalStateException("Too many messages are waiting to be sent to FreeSWITCH"));
+                return frame.future;
+            }
+
+            (now ? urgent : queue).add(frame);
+        }
+
+        drain();
+        return frame.future;
+    }
+
+    // Returns true if the frame was still waiting, in which case it will never be sent
+    public boolean cancel(CompletableFuture<Void> written) {
+        boolean removed;
+        synchronized (this) {
+            removed = urgent.removeIf(f -> f.future == written) || queue.removeIf(f -> f.future == written);
+        }
+
+        if (removed) {
+            written.cancel(false);
+        }
+        return removed;
+    }
+
+    private void drain() {
+        Session s;
+        List<Frame> batch = new ArrayList<>();
+        synchronized (this) {
+            if (inFlight || Objects.isNull(session)) {
+                return;
+            }
+
+            if (!urgent.isEmpty()) {
+                batch.add(urgent.poll());
+            } else if (ready) {
+                while (batch.size() < batchSize && !queue.isEmpty()) {
+                    batch.add(queue.poll());
+                }
+            }
+
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            inFlight = true;
+            s = session;
+        }
+
+        // Several requests can go in a single JSON-RPC batch frame
+        String text = batch.size() == 1 ? batch.get(0).text : batch.stream().map(f -> f.text).collect(Collectors.joining(",", "[", "]"));
+        try {
+            s.getAsyncRemote().sendText(text, result -> {
+                done(s);
+                batch.forEach(f -> {
+                    if (result.isOK()) {
+                        f.future.complete(null);
+                    } else {
+                        f.future.completeExceptionally(result.getException());
+                    }
+                });
+                drain();
+            });
+        } catch (RuntimeException e) {
+            done(s);
+            batch.forEach(f -> f.future.completeExceptionally(e));
+            // Nothing is in flight anymore, so nothing else would send the frames behind
+            drain();
+        }
+    }
+
+    private synchronized void done(Session s) {
+        // Ignore completions of a previous connection
+        if (s == session) {
+            inFlight = false;
+        }
+    }
+
+}
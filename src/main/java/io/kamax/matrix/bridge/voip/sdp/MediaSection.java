@@ -0,0 +1,90 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.sdp;
+
+import java.util.List;
+
+public class MediaSection {
+
+    private SessionDescription sdp;
+    private int index;
+    private int start;
+    private int end;
+    private int candidatesEnd = -1;
+    private String type;
+    private String mid;
+
+    MediaSection(SessionDescription sdp, int index, int start, String type) {
+        this.sdp = sdp;
+        this.index = index;
+        this.start = start;
+        this.type = type;
+    }
+
+    void setEnd(int end) {
+        this.end = end;
+        if (candidatesEnd < 0) {
+            candidatesEnd = end;
+        }
+    }
+
+    void setCandidatesEnd(int candidatesEnd) {
+        if (this.candidatesEnd < 0) {
+            this.candidatesEnd = candidatesEnd;
+        }
+    }
+
+    void setMid(String mid) {
+        this.mid = mid;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    // Offset of the m= line in the SDP
+    public int getStart() {
+        return start;
+    }
+
+    // Offset right after the last line of this section
+    public int getEnd() {
+        return end;
+    }
+
+    // Where new candidates go: before a=end-of-candidates if present, at the end of the section otherwise
+    public int getCandidatesEnd() {
+        return candidatesEnd;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getMid() {
+        return mid;
+    }
+
+    public List<CharSequence> getAttributes(String name) {
+        return sdp.getAttributes(start, end, name);
+    }
+
+}
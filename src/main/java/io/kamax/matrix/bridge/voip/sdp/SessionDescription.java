@@ -0,0 +1,201 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.sdp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+// View over an SDP: lines are only located, not copied, until a value is asked for
+public class SessionDescription {
+
+    private static final String endOfCandidates = "a=end-of-candidates";
+
+    public static SessionDescription parse(CharSequence sdp) {
+        return new SessionDescription(Objects.requireNonNull(sdp));
+    }
+
+    private static boolean startsWith(CharSequence s, int from, int to, String prefix) {
+        if (to - from < prefix.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length(); i++) {
+            if (s.charAt(from + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int lineEnd(CharSequence s, int from) {
+        int i = from;
+        while (i < s.length() && s.charAt(i) != '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int contentEnd(CharSequence s, int from, int lineEnd) {
+        return lineEnd > from && s.charAt(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+    }
+
+    private CharSequence source;
+    private int sessionEnd;
+    private List<MediaSection> media = new ArrayList<>();
+
+    private SessionDescription(CharSequence source) {
+        this.source = source;
+        this.sessionEnd = source.length();
+
+        MediaSection section = null;
+        int pos = 0;
+        while (pos < source.length()) {
+            int le = lineEnd(source, pos);
+            int ce = contentEnd(source, pos, le);
+
+            if (startsWith(source, pos, ce, "m=")) {
+                if (Objects.isNull(section)) {
+                    sessionEnd = pos;
+                } else {
+                    section.setEnd(pos);
+                }
+
+                int typeEnd = pos + 2;
+                while (typeEnd < ce && source.charAt(typeEnd) != ' ') {
+                    typeEnd++;
+                }
+                section = new MediaSection(this, media.size(), pos, source.subSequence(pos + 2, typeEnd).toString());
+                media.add(section);
+            } else if (Objects.nonNull(section)) {
+                if (startsWith(source, pos, ce, "a=mid:")) {
+                    section.setMid(source.subSequence(pos + 6, ce).toString());
+                } else if (startsWith(source, pos, ce, endOfCandidates)) {
+                    section.setCandidatesEnd(pos);
+                }
+            }
+
+            pos = le + 1;
+        }
+
+        if (Objects.nonNull(section)) {
+            section.setEnd(source.length());
+        }
+    }
+
+    List<CharSequence> getAttributes(int from, int to, String name) {
+        String prefix = "a=" + name;
+        List<CharSequence> values = new ArrayList<>();
+        int pos = from;
+        while (pos < to) {
+            int le = lineEnd(source, pos);
+            int ce = contentEnd(source, pos, le);
+            if (startsWith(source, pos, ce, prefix)) {
+                int valueStart = pos + prefix.length();
+                if (valueStart == ce) {
+                    values.add("");
+                } else if (source.charAt(valueStart) == ':') {
+                    values.add(source.subSequence(valueStart + 1, ce));
+                }
+            }
+            pos = le + 1;
+        }
+
+        return values;
+    }
+
+    public List<CharSequence> getAttributes(String name) {
+        return getAttributes(0, sessionEnd, name);
+    }
+
+    public List<MediaSection> getMedia() {
+        return Collections.unmodifiableList(media);
+    }
+
+    private int findSection(IceCandidate candidate) {
+        if (Objects.nonNull(candidate.getMid())) {
+            for (MediaSection section : media) {
+                if (candidate.getMid().equals(section.getMid())) {
+                    return section.getIndex();
+                }
+            }
+        }
+
+        Long index = candidate.getMLineIndex();
+        if (Objects.nonNull(index) && index >= 0 && index < media.size()) {
+            return index.intValue();
+        }
+
+        // Nothing tells us where it goes, so it goes at the end like before
+        return media.size() - 1;
+    }
+
+    // Builds a new SDP with each candidate in its own media section, in a single pass over this one
+    public String withCandidates(List<IceCandidate> candidates) {
+        if (candidates.isEmpty()) {
+            return source.toString();
+        }
+
+        int size = source.length();
+        List<List<IceCandidate>> sections = new ArrayList<>(Collections.nCopies(Math.max(1, media.size()), null));
+        for (IceCandidate candidate : candidates) {
+            int i = Math.max(0, findSection(candidate));
+            if (Objects.isNull(sections.get(i))) {
+                sections.set(i, new ArrayList<>());
+            }
+            sections.get(i).add(candidate);
+            size += candidate.getCandidate().length() + 4;
+        }
+
+        StringBuilder b = new StringBuilder(size + 2);
+        int pos = 0;
+        for (int i = 0; i < sections.size(); i++) {
+            List<IceCandidate> list = sections.get(i);
+            if (Objects.isNull(list)) {
+                continue;
+            }
+
+            int at = media.isEmpty() ? source.length() : media.get(i).getCandidatesEnd();
+            b.append(source, pos, at);
+            if (at > 0 && source.charAt(at - 1) != '\n') {
+                b.append("\r\n");
+            }
+            for (IceCandidate candidate : list) {
+                if (!candidate.getCandidate().startsWith("a=")) {
+                    b.append("a=");
+                }
+                b.append(candidate.getCandidate()).append("\r\n");
+            }
+            pos = at;
+        }
+        b.append(source, pos, source.length());
+
+        return b.toString();
+    }
+
+    @Override
+    public String toString() {
+        return source.toString();
+    }
+
+}
@@ -20,8 +20,10 @@
 
 package io.kamax.matrix.bridge.voip.spring;
 
+import io.kamax.matrix.bridge.voip.SignalingTrace;
 import io.kamax.matrix.bridge.voip.config.FreeswitchConfig;
-import io.kamax.matrix.bridge.voip.remote.call.FreeswitchManager;
+import io.kamax.matrix.bridge.voip.remote.call.FreeswitchPool;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -29,16 +31,16 @@ import org.springframework.context.annotation.Configuration;
 @Configuration
 public class Freeswitch {
 
-    private FreeswitchManager mgr;
+    private FreeswitchPool pool;
 
     @Autowired
-    public Freeswitch(FreeswitchConfig cfg) {
-        mgr = new FreeswitchManager(cfg);
+    public Freeswitch(FreeswitchConfig cfg, SignalingTrace trace, MeterRegistry registry) {
+        pool = new FreeswitchPool(cfg, trace, registry);
     }
 
     @Bean
-    public FreeswitchManager getManager() {
-        return mgr;
+    public FreeswitchPool getPool() {
+        return pool;
     }
 
 }
@@ -0,0 +1,47 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.spring;
+
+import io.kamax.matrix.bridge.voip.remote.call.FreeswitchManager;
+import io.kamax.matrix.bridge.voip.remote.call.FreeswitchPool;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+@Component
+public class FreeswitchHealthIndicator implements HealthIndicator {
+
+    private FreeswitchPool pool;
+
+    public FreeswitchHealthIndicator(FreeswitchPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public Health health() {
+        Health.Builder b = pool.isReady() ? Health.up() : Health.down();
+        for (FreeswitchManager mgr : pool.getManagers()) {
+            b.withDetail(mgr.getUrl(), (mgr.isReady() ? "UP" : "DOWN") + ", " + mgr.getCallCount() + " call(s)");
+        }
+        return b.build();
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CallMailboxTest {
+
+    // Runs nothing until asked to, so each drain of the mailbox can be observed
+    private static class ManualExecutor implements Executor {
+
+        private Queue<Runnable> tasks = new LinkedList<>();
+        private boolean rejecting;
+
+        @Override
+        public void execute(Runnable command) {
+            if (rejecting) {
+                throw new RejectedExecutionException();
+            }
+            tasks.add(command);
+        }
+
+        boolean runNext() {
+            Runnable r = tasks.poll();
+            if (r == null) {
+                return false;
+            }
+            r.run();
+            return true;
+        }
+
+    }
+
+    @Test
+    public void runsInSubmissionOrderOnSharedPool() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        CallMailbox mailbox = new CallMailbox("call-1", pool);
+        List<Integer> done = new ArrayList<>();
+        AtomicBoolean running = new AtomicBoolean();
+        AtomicBoolean overlap = new AtomicBoolean();
+        CountDownLatch finished = new CountDownLatch(1000);
+
+        for (int i = 0; i < 1000; i++) {
+            int n = i;
+            mailbox.execute(() -> {
+                if (!running.compareAndSet(false, true)) {
+                    overlap.set(true);
+                }
+                done.add(n);
+                running.set(false);
+                finished.countDown();
+            });
+        }
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        pool.shutdown();
+        assertFalse(overlap.get());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, (int) done.get(i));
+        }
+    }
+
+    @Test
+    public void failingTaskDoesNotStopOthers() {
+        ManualExecutor pool = new ManualExecutor();
+        CallMailbox mailbox = new CallMailbox("call-1", pool);
+        AtomicInteger count = new AtomicInteger();
+        mailbox.execute(() -> {
+            throw new IllegalStateException("boom");
+        });
+        mailbox.execute(count::incrementAndGet);
+
+        while (pool.runNext()) ;
+
+        assertEquals(1, count.get());
+    }
+
+    @Test
+    public void onlyOneDrainIsScheduledAtOnce() {
+        ManualExecutor pool = new ManualExecutor();
+        CallMailbox mailbox = new CallMailbox("call-1", pool);
+        for (int i = 0; i < 5; i++) {
+            mailbox.execute(() -> {
+            });
+        }
+
+        assertEquals(1, pool.tasks.size());
+    }
+
+    @Test
+    public void yieldsBetweenBatches() {
+        ManualExecutor pool = new ManualExecutor();
+        CallMailbox mailbox = new CallMailbox("call-1", pool);
+        AtomicInteger count = new AtomicInteger();
+        for (int i = 0; i < 40; i++) {
+            mailbox.execute(count::incrementAndGet);
+        }
+
+        assertTrue(pool.runNext());
+        assertEquals(32, count.get());
+        assertEquals(1, pool.tasks.size());
+
+        assertTrue(pool.runNext());
+        assertEquals(40, count.get());
+        assertTrue(pool.tasks.isEmpty());
+    }
+
+    @Test
+    public void rejectedDrainDoesNotBlockMailbox() {
+        ManualExecutor pool = new ManualExecutor();
+        CallMailbox mailbox = new CallMailbox("call-1", pool);
+        AtomicInteger count = new AtomicInteger();
+
+        pool.rejecting = true;
+        try {
+            mailbox.execute(count::incrementAndGet);
+            fail("Rejection should be reported to the caller");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+
+        pool.rejecting = false;
+        mailbox.execute(count::incrementAndGet);
+        while (pool.runNext()) ;
+
+        assertEquals(2, count.get());
+    }
+
+}
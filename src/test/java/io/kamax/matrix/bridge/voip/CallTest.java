@@ -0,0 +1,215 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip;
+
+import io.kamax.matrix.bridge.voip.config.CandidateConfig;
+import io.kamax.matrix.bridge.voip.matrix.MatrixBridgeUser;
+import io.kamax.matrix.bridge.voip.matrix.MatrixEndpoint;
+import io.kamax.matrix.bridge.voip.matrix.event.CallAnswerEvent;
+import io.kamax.matrix.bridge.voip.matrix.event.CallCandidatesEvent;
+import io.kamax.matrix.bridge.voip.matrix.event.CallHangupEvent;
+import io.kamax.matrix.bridge.voip.matrix.event.CallInviteEvent;
+import io.kamax.matrix.bridge.voip.remote.RemoteEndpoint;
+import io.kamax.matrix.bridge.voip.remote.call.FreeswitchEndpoint;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class CallTest {
+
+    private static final MeterRegistry registry = new SimpleMeterRegistry();
+
+    // Records what the call asks of it, instead of talking to the homeserver
+    private static class RecordingMatrix extends MatrixEndpoint {
+
+        private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+
+        RecordingMatrix() {
+            super(new MatrixBridgeUser(null, "@user1:example.org", null), "!room:example.org", "call-1", null, null, new CandidateConfig(), null, registry);
+        }
+
+        @Override
+        public CompletableFuture<Void> handle(String from, CallInviteEvent ev) {
+            received.add("invite");
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> handle(CallCandidatesEvent ev) {
+            received.add("candidates");
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> handle(CallAnswerEvent ev) {
+            received.add("answer");
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> handle(CallHangupEvent ev) {
+            received.add("hangup");
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void close() {
+            received.add("close");
+        }
+
+    }
+
+    // Records what the call asks of it, and lets the test play FreeSWITCH
+    private static class RecordingRemote extends RemoteEndpoint {
+
+        private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+
+        RecordingRemote() {
+            super("1000", "channel-1", "call-1", new FreeswitchEndpoint("1000", "channel-1", "call-1", null, null, null, false, null, registry), registry);
+        }
+
+        void candidates() {
+            fireCallEvent(CallListener::onCandidates, CallCandidatesEvent.from("call-1", Collections.emptyList()));
+        }
+
+        void answer() {
+            fireCallEvent(CallListener::onAnswer, CallAnswerEvent.get("call-1", "v=0"));
+        }
+
+        @Override
+        public CompletableFuture<Void> handle(CallHangupEvent ev) {
+            received.add("hangup " + ev.getReason());
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void close() {
+            received.add("close");
+        }
+
+    }
+
+    private final ExecutorService callPool = Executors.newSingleThreadExecutor();
+    private final ExecutorService setupPool = Executors.newCachedThreadPool();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private <T> T held(T value) {
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return value;
+    }
+
+    // Lets everything already submitted to the call pool run
+    private void settle() throws Exception {
+        callPool.submit(() -> {
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void after() {
+        release.countDown();
+        setupPool.shutdownNow();
+        callPool.shutdownNow();
+    }
+
+    @Test
+    public void setupDoesNotHoldCallPool() throws Exception {
+        Call call = new Call("call-1", new RecordingRemote(), callPool);
+        call.connect(() -> held(new RecordingMatrix()), setupPool);
+
+        // A single thread is shared by all calls, and the setup above is still waiting on the homeserver
+        RecordingRemote other = new RecordingRemote();
+        new Call("call-2", other, callPool).terminate();
+        settle();
+
+        assertEquals(Collections.singletonList("close"), other.received);
+    }
+
+    @Test
+    public void remoteEventsWaitForMatrixSide() throws Exception {
+        RecordingRemote remote = new RecordingRemote();
+        RecordingMatrix matrix = new RecordingMatrix();
+        Call call = new Call("call-1", remote, callPool);
+        CompletableFuture<Void> f = call.connect(() -> held(matrix), setupPool);
+
+        remote.candidates();
+        remote.answer();
+        settle();
+        assertTrue(matrix.received.isEmpty());
+
+        release.countDown();
+        f.get(5, TimeUnit.SECONDS);
+        settle();
+        assertEquals(Arrays.asList("candidates", "answer"), matrix.received);
+    }
+
+    @Test
+    public void failedSetupHangsUpRemote() throws Exception {
+        RecordingRemote remote = new RecordingRemote();
+        Call call = new Call("call-1", remote, callPool);
+        CompletableFuture<Void> f = call.connect(() -> {
+            throw new IllegalStateException("homeserver is down");
+        }, setupPool);
+
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            fail("Setup should have failed");
+        } catch (ExecutionException e) {
+            assertEquals("homeserver is down", e.getCause().getMessage());
+        }
+        assertEquals(Arrays.asList("hangup Matrix side unavailable", "close"), remote.received);
+    }
+
+    @Test
+    public void terminatedDuringSetupClosesMatrixSide() throws Exception {
+        RecordingRemote remote = new RecordingRemote();
+        RecordingMatrix matrix = new RecordingMatrix();
+        Call call = new Call("call-1", remote, callPool);
+        CompletableFuture<Void> f = call.connect(() -> held(matrix), setupPool);
+
+        remote.candidates();
+        call.terminate();
+        settle();
+        assertEquals(Collections.singletonList("close"), remote.received);
+
+        release.countDown();
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            fail("Call was terminated");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(Collections.singletonList("close"), matrix.received);
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class ListenerRegistryTest {
+
+    private SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private ListenerRegistry<Consumer<String>> listeners = new ListenerRegistry<>("test", registry);
+
+    @Test
+    public void fireReachesEveryListener() {
+        List<String> received = new ArrayList<>();
+        listeners.add(received::add);
+        listeners.add(received::add);
+
+        assertTrue(listeners.fire(Consumer::accept, "a"));
+        assertEquals(2, received.size());
+    }
+
+    @Test
+    public void failureIsReportedAndDoesNotStopOtherListeners() {
+        List<String> received = new ArrayList<>();
+        listeners.add(s -> {
+            throw new IllegalStateException("boom");
+        });
+        listeners.add(received::add);
+
+        assertFalse(listeners.fire(Consumer::accept, "a"));
+        assertEquals(1, received.size());
+        assertEquals(1, listeners.getFailureCount());
+        assertEquals(1, registry.counter("voip.listeners.failures", "registry", "test").count(), 0);
+    }
+
+    @Test
+    public void removedListenerIsNotCalled() {
+        List<String> received = new ArrayList<>();
+        Consumer<String> l = received::add;
+        listeners.add(l);
+        listeners.remove(l);
+
+        assertTrue(listeners.isEmpty());
+        assertTrue(listeners.fire(Consumer::accept, "a"));
+        assertTrue(received.isEmpty());
+    }
+
+}
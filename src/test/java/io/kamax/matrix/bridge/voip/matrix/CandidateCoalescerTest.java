@@ -0,0 +1,136 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import io.kamax.matrix.bridge.voip.matrix.event.CallCandidatesEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CandidateCoalescerTest {
+
+    private SimpleMeterRegistry registry;
+    private ScheduledThreadPoolExecutor scheduler;
+    private BlockingQueue<List<CallCandidatesEvent.Candidate>> sent;
+
+    private static List<CallCandidatesEvent.Candidate> candidates(int count) {
+        CallCandidatesEvent ev = CallCandidatesEvent.from("call-1", new ArrayList<>());
+        for (int i = 0; i < count; i++) {
+            CallCandidatesEvent.Candidate c = ev.new Candidate();
+            c.setSdpMid("audio");
+            c.setSdpMLineIndex(0L);
+            c.setCandidate("candidate:" + i + " 1 udp 1 1.2.3.4 " + (5000 + i) + " typ host");
+            ev.getCandidates().add(c);
+        }
+        return ev.getCandidates();
+    }
+
+    private CandidateCoalescer make(long window, int maxBatch) {
+        return new CandidateCoalescer(scheduler, window, maxBatch, sent::add, registry);
+    }
+
+    @Before
+    public void before() {
+        registry = new SimpleMeterRegistry();
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+        sent = new LinkedBlockingQueue<>();
+    }
+
+    @After
+    public void after() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void nothingIsSentBeforeOpen() throws InterruptedException {
+        CandidateCoalescer coalescer = make(10, 10);
+        coalescer.add(candidates(2));
+
+        assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+
+        coalescer.open();
+        assertEquals(2, sent.poll(5, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    public void candidatesWithinWindowGoInOneEvent() throws InterruptedException {
+        CandidateCoalescer coalescer = make(100, 10);
+        coalescer.open();
+        coalescer.add(candidates(1));
+        coalescer.add(candidates(2));
+        coalescer.add(candidates(1));
+
+        assertEquals(4, sent.poll(5, TimeUnit.SECONDS).size());
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, registry.counter("voip.matrix.candidates.events").count(), 0);
+        assertEquals(3, registry.counter("voip.matrix.candidates.saved").count(), 0);
+    }
+
+    @Test
+    public void fullBatchIsSentWithoutWaiting() {
+        CandidateCoalescer coalescer = make(60000, 3);
+        coalescer.open();
+        coalescer.add(candidates(7));
+
+        // Sent from the caller, no timer involved
+        assertEquals(3, sent.poll().size());
+        assertEquals(3, sent.poll().size());
+        assertEquals(1, sent.poll().size());
+        assertNull(sent.poll());
+        assertTrue(scheduler.getQueue().isEmpty());
+    }
+
+    @Test
+    public void closeDropsPendingAndTimer() throws InterruptedException {
+        CandidateCoalescer coalescer = make(60000, 10);
+        coalescer.open();
+        coalescer.add(candidates(2));
+        assertEquals(1, scheduler.getQueue().size());
+
+        coalescer.close();
+        coalescer.add(candidates(1));
+
+        assertTrue(scheduler.getQueue().isEmpty());
+        assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void batchSizeBelowOneSendsEachCandidate() {
+        CandidateCoalescer coalescer = make(60000, 0);
+        coalescer.open();
+        coalescer.add(candidates(2));
+
+        assertEquals(1, sent.poll().size());
+        assertEquals(1, sent.poll().size());
+    }
+
+}
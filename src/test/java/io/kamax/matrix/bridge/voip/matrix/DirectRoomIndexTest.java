@@ -0,0 +1,188 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DirectRoomIndexTest {
+
+    private static final String vUser = "@_voip_1000:example.org";
+    private static final String user = "@user1:example.org";
+
+    private Path dir;
+    private ScheduledThreadPoolExecutor scheduler;
+    private ExecutorService pool;
+
+    private DirectRoomIndex open() {
+        return new DirectRoomIndex(dir.resolve("rooms.json").toString(), scheduler);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Before
+    public void before() throws IOException {
+        dir = Files.createTempDirectory("rooms");
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        pool = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void after() {
+        pool.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void indexSurvivesRestart() {
+        DirectRoomIndex index = open();
+        index.put(vUser, user, "!a:example.org");
+        index.scan(vUser, () -> {
+        });
+        index.flush();
+
+        DirectRoomIndex reopened = open();
+        assertEquals(Optional.of("!a:example.org"), reopened.find(vUser, user));
+        reopened.scan(vUser, () -> fail("Rooms were already scanned"));
+    }
+
+    @Test
+    public void savedOnItsOwnAfterDelay() throws Exception {
+        open().put(vUser, user, "!a:example.org");
+
+        long end = System.currentTimeMillis() + 5000;
+        while (!Files.exists(dir.resolve("rooms.json")) && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+        }
+        assertEquals(Optional.of("!a:example.org"), open().find(vUser, user));
+    }
+
+    @Test
+    public void leftRoomIsRemoved() {
+        DirectRoomIndex index = open();
+        index.put(vUser, user, "!a:example.org");
+        index.put(vUser, "@user2:example.org", "!a:example.org");
+        index.put("@_voip_1001:example.org", user, "!b:example.org");
+
+        index.remove("!a:example.org");
+        index.flush();
+
+        DirectRoomIndex reopened = open();
+        assertFalse(reopened.find(vUser, user).isPresent());
+        assertFalse(reopened.find(vUser, "@user2:example.org").isPresent());
+        assertEquals(Optional.of("!b:example.org"), reopened.find("@_voip_1001:example.org", user));
+    }
+
+    @Test
+    public void replacedRoomIsNotRemovedByOldOne() {
+        DirectRoomIndex index = open();
+        index.put(vUser, user, "!a:example.org");
+        index.put(vUser, user, "!b:example.org");
+
+        index.remove("!a:example.org");
+
+        assertEquals(Optional.of("!b:example.org"), index.find(vUser, user));
+    }
+
+    @Test
+    public void concurrentCallersWaitForScan() throws Exception {
+        DirectRoomIndex index = open();
+        CountDownLatch scanning = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger scans = new AtomicInteger();
+
+        Future<?> first = pool.submit(() -> index.scan(vUser, () -> {
+            scans.incrementAndGet();
+            scanning.countDown();
+            await(release);
+            index.put(vUser, user, "!a:example.org");
+        }));
+        await(scanning);
+        Future<Optional<String>> second = pool.submit(() -> {
+            index.scan(vUser, scans::incrementAndGet);
+            return index.find(vUser, user);
+        });
+        Thread.sleep(100);
+        assertFalse(second.isDone());
+
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        assertEquals(Optional.of("!a:example.org"), second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, scans.get());
+    }
+
+    @Test
+    public void failedScanIsDoneAgain() {
+        DirectRoomIndex index = open();
+        try {
+            index.scan(vUser, () -> {
+                throw new IllegalStateException("homeserver is down");
+            });
+            fail("Scan should have failed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        AtomicInteger scans = new AtomicInteger();
+        index.scan(vUser, scans::incrementAndGet);
+        index.scan(vUser, scans::incrementAndGet);
+        assertEquals(1, scans.get());
+    }
+
+    @Test
+    public void concurrentCallersGetSameNewRoom() throws Exception {
+        DirectRoomIndex index = open();
+        CountDownLatch creating = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger created = new AtomicInteger();
+
+        Future<String> first = pool.submit(() -> index.findOrCreate(vUser, user, () -> {
+            creating.countDown();
+            await(release);
+            return "!room" + created.incrementAndGet() + ":example.org";
+        }));
+        await(creating);
+        Future<String> second = pool.submit(() -> index.findOrCreate(vUser, user, () -> "!room" + created.incrementAndGet() + ":example.org"));
+        Thread.sleep(100);
+        release.countDown();
+
+        assertEquals("!room1:example.org", first.get(5, TimeUnit.SECONDS));
+        assertEquals("!room1:example.org", second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, created.get());
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import io.kamax.matrix.MatrixErrorInfo;
+import io.kamax.matrix.client.MatrixClientRequestException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HomeserverSenderTest {
+
+    private SimpleMeterRegistry registry;
+    private ScheduledThreadPoolExecutor scheduler;
+    private HomeserverSender sender;
+
+    private static MatrixClientRequestException limited() {
+        return new MatrixClientRequestException(new MatrixErrorInfo("M_LIMIT_EXCEEDED"), "Too many requests");
+    }
+
+    private long latencyCount() {
+        return registry.get("voip.matrix.send.latency").tag("priority", HomeserverSender.Priority.Critical.name()).timer().count();
+    }
+
+    @Before
+    public void before() {
+        registry = new SimpleMeterRegistry();
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    @After
+    public void after() {
+        sender.close();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void latencyIsRecordedOnceForRetriedRequest() throws Exception {
+        sender = new HomeserverSender(1, 10, 5, scheduler, registry);
+        AtomicInteger calls = new AtomicInteger();
+        sender.submit(HomeserverSender.Priority.Critical, "@a:example.org", () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw limited();
+            }
+        }).get(5, TimeUnit.SECONDS);
+
+        assertEquals(3, calls.get());
+        assertEquals(1, latencyCount());
+    }
+
+    @Test
+    public void waitingForRateLimitIsNotRecorded() throws Exception {
+        sender = new HomeserverSender(1, 60000, 5, scheduler, registry);
+        CountDownLatch attempted = new CountDownLatch(1);
+        sender.submit(HomeserverSender.Priority.Critical, "@a:example.org", () -> {
+            attempted.countDown();
+            throw limited();
+        });
+        assertTrue(attempted.await(5, TimeUnit.SECONDS));
+
+        // The user is now limited: this one waits without being sent
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<Void> waiting = sender.submit(HomeserverSender.Priority.Critical, "@a:example.org", calls::incrementAndGet);
+        Thread.sleep(100);
+
+        assertFalse(waiting.isDone());
+        assertEquals(0, calls.get());
+        assertEquals(1, latencyCount());
+    }
+
+    @Test
+    public void deferredRequestsFailOnClose() throws Exception {
+        sender = new HomeserverSender(1, 60000, 5, scheduler, registry);
+        CountDownLatch attempted = new CountDownLatch(1);
+        CompletableFuture<Void> f = sender.submit(HomeserverSender.Priority.Normal, "@a:example.org", () -> {
+            attempted.countDown();
+            throw limited();
+        });
+        assertTrue(attempted.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertFalse(f.isDone());
+
+        sender.close();
+
+        try {
+            f.get(1, TimeUnit.SECONDS);
+            fail("Deferred request should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void submitAfterCloseFails() {
+        sender = new HomeserverSender(1, 10, 5, scheduler, registry);
+        sender.close();
+
+        CompletableFuture<Void> f = sender.submit(HomeserverSender.Priority.Critical, "@a:example.org", () -> {
+        });
+        assertTrue(f.isCompletedExceptionally());
+    }
+
+    @Test
+    public void rateLimitIsForgottenOnceOver() throws Exception {
+        sender = new HomeserverSender(1, 50, 1, scheduler, registry);
+        AtomicInteger calls = new AtomicInteger();
+        sender.submit(HomeserverSender.Priority.Critical, "@b:example.org", () -> {
+            if (calls.incrementAndGet() == 1) {
+                throw limited();
+            }
+        }).get(5, TimeUnit.SECONDS);
+
+        // No request is left for the user, so nothing else would clear it
+        long end = System.currentTimeMillis() + 5000;
+        while (sender.getLimitedCount() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, sender.getLimitedCount());
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class LocalpartMatcherTest {
+
+    @Test
+    public void literalTemplate() {
+        LocalpartMatcher matcher = new LocalpartMatcher(Collections.singletonList("_voip_%REMOTE_ID%"));
+
+        assertEquals(Optional.of("1234"), matcher.findRemoteId("_voip_1234"));
+        assertEquals(Optional.of(""), matcher.findRemoteId("_voip_"));
+        assertFalse(matcher.findRemoteId("_sip_1234").isPresent());
+        assertFalse(matcher.findRemoteId("voip_1234").isPresent());
+    }
+
+    @Test
+    public void literalTemplateWithSuffix() {
+        LocalpartMatcher matcher = new LocalpartMatcher(Collections.singletonList("x%REMOTE_ID%x"));
+
+        assertEquals(Optional.of("1234"), matcher.findRemoteId("x1234x"));
+        assertEquals(Optional.of(""), matcher.findRemoteId("xx"));
+
+        // Prefix and suffix must not overlap
+        assertFalse(matcher.findRemoteId("x").isPresent());
+        assertFalse(matcher.findRemoteId("x1234").isPresent());
+    }
+
+    @Test
+    public void regexTemplate() {
+        LocalpartMatcher matcher = new LocalpartMatcher(Collections.singletonList("_(voip|sip)_%REMOTE_ID%"));
+
+        assertEquals(Optional.of("1234"), matcher.findRemoteId("_voip_1234"));
+        assertEquals(Optional.of("42"), matcher.findRemoteId("_sip_42"));
+        assertFalse(matcher.findRemoteId("_sms_42").isPresent());
+    }
+
+    @Test
+    public void dotIsNotLiteral() {
+        LocalpartMatcher matcher = new LocalpartMatcher(Collections.singletonList("voip.%REMOTE_ID%"));
+
+        assertEquals(Optional.of("1234"), matcher.findRemoteId("voip.1234"));
+        assertEquals(Optional.of("1234"), matcher.findRemoteId("voip_1234"));
+    }
+
+    @Test
+    public void firstMatchingTemplateWins() {
+        LocalpartMatcher matcher = new LocalpartMatcher(Arrays.asList("_voip_%REMOTE_ID%", "_%REMOTE_ID%"));
+
+        assertEquals(Optional.of("1234"), matcher.findRemoteId("_voip_1234"));
+        assertEquals(Optional.of("sip_1234"), matcher.findRemoteId("_sip_1234"));
+    }
+
+    @Test
+    public void cachedResultsAreStable() {
+        LocalpartMatcher matcher = new LocalpartMatcher(Collections.singletonList("_voip_%REMOTE_ID%"));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Optional.of("1234"), matcher.findRemoteId("_voip_1234"));
+            assertFalse(matcher.findRemoteId("someone").isPresent());
+        }
+    }
+
+    @Test
+    public void noTemplateMatchesNothing() {
+        assertFalse(new LocalpartMatcher(Collections.emptyList()).findRemoteId("_voip_1234").isPresent());
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import io.kamax.matrix.MatrixID;
+import io.kamax.matrix._MatrixID;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class RoomMembershipCacheTest {
+
+    private static final String roomId = "!room:example.org";
+    private static final _MatrixID user = MatrixID.asAcceptable("@user1:example.org");
+    private static final _MatrixID vUser = MatrixID.asAcceptable("@_voip_1000:example.org");
+
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+
+    private static Optional<MatrixBridgeUser> resolve(_MatrixID id) {
+        if (!id.getLocalPart().startsWith("_voip_")) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new MatrixBridgeUser(null, id.getId(), id.getLocalPart().substring(6)));
+    }
+
+    private static RoomMembershipCache cache(Function<String, List<_MatrixID>> loader, Function<_MatrixID, Optional<MatrixBridgeUser>> resolver) {
+        return new RoomMembershipCache(loader, resolver, 100, Duration.ofHours(1), new SimpleMeterRegistry());
+    }
+
+    private static List<String> ids(List<MatrixBridgeUser> users) {
+        return users.stream().map(MatrixBridgeUser::getLocalId).collect(Collectors.toList());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @After
+    public void after() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void unknownRoomIsLoadedOnFirstUse() {
+        AtomicInteger loads = new AtomicInteger();
+        RoomMembershipCache cache = cache(id -> {
+            loads.incrementAndGet();
+            return Arrays.asList(user, vUser);
+        }, RoomMembershipCacheTest::resolve);
+
+        cache.update(roomId, vUser, "leave");
+        assertFalse(cache.isLoaded(roomId));
+
+        assertEquals(Collections.singletonList(vUser.getId()), ids(cache.getVirtualUsers(roomId)));
+        assertEquals(2, cache.getJoinedUsers(roomId).size());
+        assertTrue(cache.isLoaded(roomId));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void membershipChangesAreApplied() {
+        RoomMembershipCache cache = cache(id -> Collections.singletonList(user), RoomMembershipCacheTest::resolve);
+        assertTrue(cache.getVirtualUsers(roomId).isEmpty());
+
+        cache.update(roomId, vUser, "join");
+        assertEquals(Collections.singletonList(vUser.getId()), ids(cache.getVirtualUsers(roomId)));
+
+        cache.update(roomId, vUser, "ban");
+        assertTrue(cache.getVirtualUsers(roomId).isEmpty());
+        assertEquals(1, cache.getJoinedUsers(roomId).size());
+    }
+
+    @Test
+    public void changeWhileLoadingIsKept() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RoomMembershipCache cache = cache(id -> {
+            loading.countDown();
+            await(release);
+            // Fetched before the virtual user left
+            return Arrays.asList(user, vUser);
+        }, RoomMembershipCacheTest::resolve);
+
+        Future<List<MatrixBridgeUser>> first = pool.submit(() -> cache.getVirtualUsers(roomId));
+        await(loading);
+        cache.update(roomId, vUser, "leave");
+        release.countDown();
+
+        assertTrue(first.get(5, TimeUnit.SECONDS).isEmpty());
+        assertTrue(cache.getVirtualUsers(roomId).isEmpty());
+        assertEquals(Collections.singletonList(user), Arrays.asList(cache.getJoinedUsers(roomId).toArray()));
+    }
+
+    @Test
+    public void staleVirtualUsersAreNotKept() throws Exception {
+        CountDownLatch resolving = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        RoomMembershipCache cache = cache(id -> Arrays.asList(user, vUser), id -> {
+            if (calls.incrementAndGet() == 1) {
+                resolving.countDown();
+                await(release);
+            }
+            return resolve(id);
+        });
+        cache.getJoinedUsers(roomId);
+
+        Future<List<MatrixBridgeUser>> computing = pool.submit(() -> cache.getVirtualUsers(roomId));
+        await(resolving);
+        cache.update(roomId, vUser, "leave");
+        release.countDown();
+        computing.get(5, TimeUnit.SECONDS);
+
+        assertTrue(cache.getVirtualUsers(roomId).isEmpty());
+    }
+
+    @Test
+    public void concurrentCallersLoadOnce() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        RoomMembershipCache cache = cache(id -> {
+            loads.incrementAndGet();
+            await(release);
+            return Collections.singletonList(vUser);
+        }, RoomMembershipCacheTest::resolve);
+
+        Future<List<MatrixBridgeUser>> first = pool.submit(() -> cache.getVirtualUsers(roomId));
+        Future<List<MatrixBridgeUser>> second = pool.submit(() -> cache.getVirtualUsers(roomId));
+        Thread.sleep(100);
+        release.countDown();
+
+        assertEquals(1, first.get(5, TimeUnit.SECONDS).size());
+        assertEquals(1, second.get(5, TimeUnit.SECONDS).size());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void failedLoadIsRetried() {
+        AtomicInteger loads = new AtomicInteger();
+        RoomMembershipCache cache = cache(id -> {
+            if (loads.incrementAndGet() == 1) {
+                throw new IllegalStateException("homeserver is down");
+            }
+            return Collections.singletonList(vUser);
+        }, RoomMembershipCacheTest::resolve);
+
+        try {
+            cache.getVirtualUsers(roomId);
+            fail("Load should have failed");
+        } catch (IllegalStateException e) {
+            assertFalse(cache.isLoaded(roomId));
+        }
+
+        assertEquals(1, cache.getVirtualUsers(roomId).size());
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import io.kamax.matrix.bridge.voip.config.TransactionConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TransactionLogTest {
+
+    private Path dir;
+    private List<TransactionLog> logs = new ArrayList<>();
+
+    private TransactionConfig config(boolean journal) {
+        TransactionConfig cfg = new TransactionConfig();
+        cfg.setCapacity(3);
+        cfg.setWindow(Duration.ofHours(1));
+        if (journal) {
+            cfg.setJournal(dir.resolve("txn.log").toString());
+        }
+        return cfg;
+    }
+
+    private TransactionLog open(TransactionConfig cfg) {
+        TransactionLog log = new TransactionLog(cfg);
+        logs.add(log);
+        return log;
+    }
+
+    @Before
+    public void before() throws IOException {
+        dir = Files.createTempDirectory("txn");
+    }
+
+    @After
+    public void after() {
+        logs.forEach(TransactionLog::close);
+    }
+
+    // Like a transaction whose events were all processed
+    private static boolean process(TransactionLog log, String id) {
+        if (!log.begin(id)) {
+            return false;
+        }
+
+        log.commit(id);
+        return true;
+    }
+
+    @Test
+    public void idIsOnlyNewOnce() {
+        TransactionLog log = open(config(false));
+
+        assertTrue(process(log, "1"));
+        assertFalse(process(log, "1"));
+        assertTrue(process(log, "2"));
+    }
+
+    @Test
+    public void abortedIdIsNewAgain() {
+        TransactionLog log = open(config(false));
+        assertTrue(log.begin("1"));
+        log.abort("1");
+
+        assertTrue(log.begin("1"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void retryWhileInFlightIsRejected() {
+        TransactionLog log = open(config(false));
+        assertTrue(log.begin("1"));
+
+        log.begin("1");
+    }
+
+    @Test
+    public void eldestIsDroppedOverCapacity() {
+        TransactionLog log = open(config(false));
+        for (String id : new String[]{"1", "2", "3", "4"}) {
+            process(log, id);
+        }
+
+        assertTrue(process(log, "1"));
+        assertFalse(process(log, "4"));
+    }
+
+    @Test
+    public void expiredIdIsNewAgain() throws InterruptedException {
+        TransactionConfig cfg = config(false);
+        cfg.setWindow(Duration.ofMillis(50));
+        TransactionLog log = open(cfg);
+        process(log, "1");
+        Thread.sleep(100);
+
+        assertTrue(process(log, "1"));
+    }
+
+    @Test
+    public void concurrentRetriesOnlyLetOneThrough() throws Exception {
+        TransactionLog log = open(config(false));
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                try {
+                    if (log.begin("1")) {
+                        accepted.incrementAndGet();
+                    }
+                } catch (IllegalStateException e) {
+                    rejected.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> f : futures) {
+            f.get(5, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        assertEquals(1, accepted.get());
+        assertEquals(7, rejected.get());
+    }
+
+    @Test
+    public void journalSurvivesRestart() {
+        TransactionLog log = open(config(true));
+        process(log, "1");
+        process(log, "2");
+        log.close();
+
+        TransactionLog reopened = open(config(true));
+        assertFalse(process(reopened, "1"));
+        assertFalse(process(reopened, "2"));
+        assertTrue(process(reopened, "3"));
+    }
+
+    @Test
+    public void retryAfterCrashIsProcessed() {
+        TransactionLog log = open(config(true));
+        process(log, "1");
+        assertTrue(log.begin("2"));
+        // Crash while the events of 2 are processed: no commit, no abort, and no answer to the homeserver
+        log.close();
+
+        TransactionLog reopened = open(config(true));
+        assertTrue(reopened.begin("2"));
+        assertFalse(reopened.begin("1"));
+    }
+
+    @Test
+    public void abortedIdIsNewAfterRestart() {
+        TransactionLog log = open(config(true));
+        process(log, "1");
+        log.begin("2");
+        log.abort("2");
+        log.close();
+
+        TransactionLog reopened = open(config(true));
+        assertTrue(reopened.begin("2"));
+    }
+
+    @Test
+    public void journalStaysBounded() throws IOException {
+        TransactionLog log = open(config(true));
+        for (int i = 0; i < 100; i++) {
+            process(log, Integer.toString(i));
+        }
+        log.close();
+
+        assertTrue(Files.readAllLines(dir.resolve("txn.log"), StandardCharsets.UTF_8).size() <= 6);
+    }
+
+    @Test
+    public void invalidJournalLinesAreIgnored() throws IOException {
+        Files.write(dir.resolve("txn.log"), ("garbage\n" + System.currentTimeMillis() + " 1\nabc 2\n").getBytes(StandardCharsets.UTF_8));
+
+        TransactionLog log = open(config(true));
+        assertFalse(process(log, "1"));
+        assertTrue(process(log, "2"));
+    }
+
+}
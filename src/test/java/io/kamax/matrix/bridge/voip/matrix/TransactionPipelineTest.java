@@ -0,0 +1,264 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import io.kamax.matrix.bridge.voip.HomeView;
+import io.kamax.matrix.bridge.voip.config.TransactionConfig;
+import io.kamax.matrix.event._MatrixEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class TransactionPipelineTest {
+
+    // Records the events it is given, optionally holding each of them until released
+    private static class RecordingHome implements HomeView {
+
+        private final List<String> processed = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch release;
+
+        RecordingHome(boolean hold) {
+            this.release = new CountDownLatch(hold ? 1 : 0);
+        }
+
+        @Override
+        public void queryUser(String user) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void queryRoom(String room) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void process(Transaction transaction) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void process(_MatrixEvent event) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            processed.add(event.getId());
+        }
+
+    }
+
+    private Path dir;
+    private TransactionLog transactions;
+    private List<TransactionPipeline> pipelines = new ArrayList<>();
+
+    private static String event(String id, String roomId) {
+        return "{\"event_id\":\"" + id + "\",\"room_id\":\"" + roomId + "\",\"type\":\"m.call.candidates\",\"content\":{}}";
+    }
+
+    private static Transaction transaction(String id, String... events) throws IOException {
+        return new TransactionReader().read(id, new StringReader("{\"events\":[" + String.join(",", events) + "]}"));
+    }
+
+    private TransactionConfig config(int workers, int queueSize, boolean spool) {
+        TransactionConfig cfg = new TransactionConfig();
+        cfg.setWindow(Duration.ofHours(1));
+        cfg.setCapacity(100);
+        cfg.getPipeline().setEnabled(true);
+        cfg.getPipeline().setWorkers(workers);
+        cfg.getPipeline().setQueueSize(queueSize);
+        if (spool) {
+            cfg.getPipeline().setSpool(dir.resolve("spool").toString());
+        }
+        return cfg;
+    }
+
+    private TransactionPipeline open(TransactionConfig cfg, HomeView home) {
+        TransactionPipeline pipeline = new TransactionPipeline(cfg, home, transactions, new SimpleMeterRegistry());
+        pipelines.add(pipeline);
+        return pipeline;
+    }
+
+    private List<String> spooled() throws IOException {
+        try (Stream<Path> s = Files.list(dir.resolve("spool"))) {
+            return s.map(p -> p.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void awaitCount(List<String> list, int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (list.size() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, list.size());
+    }
+
+    @Before
+    public void before() throws IOException {
+        dir = Files.createTempDirectory("pipeline");
+        transactions = new TransactionLog(new TransactionConfig());
+    }
+
+    @After
+    public void after() {
+        pipelines.forEach(TransactionPipeline::close);
+        transactions.close();
+    }
+
+    @Test
+    public void acknowledgesBeforeProcessing() throws Exception {
+        RecordingHome home = new RecordingHome(true);
+        TransactionPipeline pipeline = open(config(2, 10, true), home);
+        pipeline.onReady(null);
+
+        pipeline.submit(transaction("t1", event("$1", "!a:example.org")));
+
+        // Returned while the event is still held: it is spooled but not processed
+        assertTrue(home.processed.isEmpty());
+        assertTrue(spooled().contains("00000000000000000001.json"));
+
+        home.release.countDown();
+        awaitCount(home.processed, 1);
+    }
+
+    @Test
+    public void keepsRoomOrderAcrossWorkers() throws Exception {
+        RecordingHome home = new RecordingHome(false);
+        TransactionPipeline pipeline = open(config(4, 1000, false), home);
+        pipeline.onReady(null);
+
+        int rooms = 8;
+        int perRoom = 50;
+        for (int i = 0; i < perRoom; i++) {
+            String[] events = new String[rooms];
+            for (int r = 0; r < rooms; r++) {
+                events[r] = event("$" + r + "-" + i, "!" + r + ":example.org");
+            }
+            pipeline.submit(transaction("t" + i, events));
+        }
+        awaitCount(home.processed, rooms * perRoom);
+
+        Map<String, Integer> last = new HashMap<>();
+        for (String id : new ArrayList<>(home.processed)) {
+            String room = id.substring(1, id.indexOf('-'));
+            int seq = Integer.parseInt(id.substring(id.indexOf('-') + 1));
+            assertEquals(last.getOrDefault(room, -1) + 1, seq);
+            last.put(room, seq);
+        }
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws Exception {
+        RecordingHome home = new RecordingHome(false);
+        TransactionPipeline pipeline = open(config(1, 1, true), home);
+
+        // Not ready yet, so nothing leaves the queue
+        pipeline.submit(transaction("t1", event("$1", "!a:example.org")));
+        try {
+            pipeline.submit(transaction("t2", event("$2", "!a:example.org")));
+            fail("Queue should be full");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(Collections.singletonList("00000000000000000001.json"), spooled());
+
+        // The rejected transaction was not marked, so its retry goes through
+        pipeline.onReady(null);
+        awaitCount(home.processed, 1);
+        pipeline.submit(transaction("t2", event("$2", "!a:example.org")));
+        awaitCount(home.processed, 2);
+    }
+
+    @Test
+    public void duplicateIsAcknowledgedWithoutProcessing() throws Exception {
+        RecordingHome home = new RecordingHome(false);
+        TransactionPipeline pipeline = open(config(1, 10, true), home);
+        pipeline.onReady(null);
+
+        pipeline.submit(transaction("t1", event("$1", "!a:example.org")));
+        pipeline.submit(transaction("t1", event("$1", "!a:example.org")));
+        awaitCount(home.processed, 1);
+        Thread.sleep(100);
+
+        assertEquals(1, home.processed.size());
+    }
+
+    @Test
+    public void failedSpoolWriteIsNotMarked() throws Exception {
+        RecordingHome home = new RecordingHome(false);
+        TransactionPipeline pipeline = open(config(1, 10, true), home);
+        pipeline.onReady(null);
+        Files.delete(dir.resolve("spool"));
+
+        try {
+            pipeline.submit(transaction("t1", event("$1", "!a:example.org")));
+            fail("Spooling should have failed");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        Files.createDirectories(dir.resolve("spool"));
+        pipeline.submit(transaction("t1", event("$1", "!a:example.org")));
+        awaitCount(home.processed, 1);
+    }
+
+    @Test
+    public void replaySkipsDoneEvents() throws Exception {
+        Path spool = Files.createDirectories(dir.resolve("spool"));
+        String body = "{\"txn_id\":\"t1\",\"events\":[" +
+                event("$1", "!a:example.org") + "," +
+                event("$2", "!a:example.org") + "," +
+                event("$3", "!a:example.org") + "]}";
+        Files.write(spool.resolve("00000000000000000007.json"), body.getBytes(StandardCharsets.UTF_8));
+        Files.write(spool.resolve("00000000000000000007.done"), "$1\n".getBytes(StandardCharsets.UTF_8));
+
+        RecordingHome home = new RecordingHome(false);
+        TransactionPipeline pipeline = open(config(2, 10, true), home);
+        assertTrue(home.processed.isEmpty());
+
+        pipeline.onReady(null);
+        awaitCount(home.processed, 2);
+        assertEquals(Arrays.asList("$2", "$3"), home.processed);
+
+        // Once all of its events are done, nothing is left of the transaction
+        long end = System.currentTimeMillis() + 5000;
+        while (!spooled().isEmpty() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertTrue(spooled().isEmpty());
+    }
+
+}
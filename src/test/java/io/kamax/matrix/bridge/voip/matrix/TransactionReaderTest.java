@@ -0,0 +1,99 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.matrix;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+public class TransactionReaderTest {
+
+    private TransactionReader reader = new TransactionReader();
+
+    private Transaction read(String id, String json) throws IOException {
+        return reader.read(id, new StringReader(json));
+    }
+
+    @Test
+    public void keepsOnlyRelevantEvents() throws IOException {
+        Transaction txn = read("1", "{\"events\":[" +
+                "{\"type\":\"m.room.message\",\"content\":{\"body\":\"hello\"}}," +
+                "{\"event_id\":\"$a\",\"type\":\"m.call.invite\",\"content\":{\"call_id\":\"c1\"}}," +
+                "{\"type\":\"m.room.member\",\"state_key\":\"@a:example.org\",\"content\":{\"membership\":\"join\"}}," +
+                "{\"type\":\"m.typing\"}" +
+                "]}");
+
+        assertEquals("1", txn.getId());
+        assertEquals(2, txn.getEvents().size());
+        assertEquals("m.call.invite", txn.getEvents().get(0).getType());
+        assertEquals("c1", txn.getEvents().get(0).getJson().getAsJsonObject("content").get("call_id").getAsString());
+        assertEquals("m.room.member", txn.getEvents().get(1).getType());
+    }
+
+    @Test
+    public void keepsFieldsBeforeAndAfterType() throws IOException {
+        Transaction txn = read("1", "{\"events\":[{\"room_id\":\"!r:example.org\",\"type\":\"m.call.hangup\",\"content\":{\"call_id\":\"c1\"}}]}");
+
+        assertEquals(1, txn.getEvents().size());
+        assertEquals("!r:example.org", txn.getEvents().get(0).getJson().get("room_id").getAsString());
+        assertTrue(txn.getEvents().get(0).getJson().has("content"));
+    }
+
+    @Test
+    public void skipsMalformedEvents() throws IOException {
+        Transaction txn = read("1", "{\"events\":[" +
+                "\"not an event\"," +
+                "{\"content\":{}}," +
+                "{\"type\":42}," +
+                "{\"type\":\"m.call.answer\"}" +
+                "]}");
+
+        assertEquals(1, txn.getEvents().size());
+        assertEquals("m.call.answer", txn.getEvents().get(0).getType());
+    }
+
+    @Test
+    public void storedIdTakesPrecedence() throws IOException {
+        assertEquals("stored", read("given", "{\"txn_id\":\"stored\",\"events\":[]}").getId());
+        assertEquals("stored", read("given", "{\"events\":[],\"txn_id\":\"stored\"}").getId());
+        assertEquals("given", read("given", "{\"txn_id\":7,\"events\":[]}").getId());
+    }
+
+    @Test
+    public void ignoresUnknownKeys() throws IOException {
+        Transaction txn = read("1", "{\"ephemeral\":[{\"type\":\"m.call.invite\"}],\"events\":[]}");
+
+        assertTrue(txn.getEvents().isEmpty());
+    }
+
+    @Test
+    public void relevantTypes() {
+        assertTrue(TransactionReader.isRelevant("m.call.invite"));
+        assertTrue(TransactionReader.isRelevant("m.call.candidates"));
+        assertTrue(TransactionReader.isRelevant("m.room.member"));
+        assertFalse(TransactionReader.isRelevant("m.room.message"));
+        assertFalse(TransactionReader.isRelevant(null));
+    }
+
+}
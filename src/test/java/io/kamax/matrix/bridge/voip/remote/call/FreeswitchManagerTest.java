@@ -0,0 +1,206 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.remote.call;
+
+import io.kamax.matrix.bridge.voip.CallInfo;
+import io.kamax.matrix.bridge.voip.SignalingTrace;
+import io.kamax.matrix.bridge.voip.config.FreeswitchConfig;
+import io.kamax.matrix.bridge.voip.config.TraceConfig;
+import io.kamax.matrix.bridge.voip.matrix.event.CallHangupEvent;
+import io.kamax.matrix.bridge.voip.matrix.event.CallInviteEvent;
+import com.google.gson.JsonObject;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.junit.Assert.*;
+
+public class FreeswitchManagerTest {
+
+    // No end-of-candidates, so the endpoint waits for more on the scheduler
+    private static final String trickleSdp = "v=0\r\n" +
+            "o=- 1 1 IN IP4 127.0.0.1\r\n" +
+            "s=-\r\n" +
+            "t=0 0\r\n" +
+            "m=audio 9 UDP/TLS/RTP/SAVPF 111\r\n" +
+            "c=IN IP4 0.0.0.0\r\n" +
+            "a=mid:audio\r\n" +
+            "a=candidate:1 1 udp 2122260223 192.168.1.2 50000 typ host\r\n";
+
+    // Keeps the answers the bridge gives to FreeSWITCH requests
+    private static class RecordingCallback implements FreeswitchVertoClient.Callback {
+
+        private final List<JsonObject> answers = new ArrayList<>();
+
+        @Override
+        public long getId() {
+            return 1;
+        }
+
+        @Override
+        public void sendAnswer(JsonObject obj) {
+            answers.add(obj);
+        }
+
+    }
+
+    private ScheduledThreadPoolExecutor scheduler;
+    private FreeswitchManager mgr;
+
+    private static JsonObject params(String callId) {
+        JsonObject params = new JsonObject();
+        params.addProperty("callID", callId);
+        params.addProperty("sdp", trickleSdp);
+        return params;
+    }
+
+    @Before
+    public void before() {
+        FreeswitchConfig cfg = new FreeswitchConfig();
+        FreeswitchConfig.Verto verto = new FreeswitchConfig.Verto();
+        verto.setUrl("ws://127.0.0.1:8081");
+        verto.setLogin("1000@localhost");
+
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        mgr = new FreeswitchManager(verto, scheduler, Runnable::run, new CandidateWaitPolicy(cfg.getCandidates(), registry), false, new SignalingTrace(new TraceConfig()), registry);
+    }
+
+    @After
+    public void after() {
+        mgr.close();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void callCountDropsAfterHangupFromFreeswitch() {
+        FreeswitchEndpoint ended = mgr.makeEndpoint("1001", "call-1");
+        mgr.makeEndpoint("1002", "call-2");
+        assertEquals(2, mgr.getCallCount());
+
+        ended.inject(CallHangupEvent.from("call-1", null));
+
+        assertTrue(ended.isClosed());
+        assertEquals(1, mgr.getCallCount());
+        assertNull(mgr.getEndpoint("call-1"));
+        assertNotNull(mgr.getEndpoint("call-2"));
+    }
+
+    @Test
+    public void callCountDropsAfterCloseByBridge() {
+        mgr.makeEndpoint("1001", "call-1").close();
+
+        assertEquals(0, mgr.getCallCount());
+        assertNull(mgr.getEndpoint("call-1"));
+    }
+
+    @Test
+    public void endpointIsOnlyRemovedOnce() {
+        FreeswitchEndpoint endpoint = mgr.makeEndpoint("1001", "call-1");
+        endpoint.close();
+        FreeswitchEndpoint next = mgr.makeEndpoint("1001", "call-1");
+        endpoint.close();
+
+        assertNotSame(endpoint, next);
+        assertSame(next, mgr.getEndpoint("call-1"));
+        assertEquals(1, mgr.getCallCount());
+    }
+
+    @Test
+    public void noTimerIsLeftAfterCallIsClosed() {
+        FreeswitchEndpoint endpoint = mgr.makeEndpoint("1001", "call-1");
+        endpoint.handle("@a:example.org", CallInviteEvent.get("call-1", trickleSdp, 60000));
+        assertEquals(1, scheduler.getQueue().size());
+
+        endpoint.close();
+
+        assertTrue(scheduler.getQueue().isEmpty());
+    }
+
+    @Test
+    public void noTimerIsLeftAfterHangupFromFreeswitch() {
+        FreeswitchEndpoint endpoint = mgr.makeEndpoint("1001", "call-1");
+        endpoint.handle("@a:example.org", CallInviteEvent.get("call-1", trickleSdp, 60000));
+        assertEquals(1, scheduler.getQueue().size());
+
+        endpoint.inject(CallHangupEvent.from("call-1", null));
+
+        assertTrue(scheduler.getQueue().isEmpty());
+    }
+
+    @Test
+    public void lateMessagesForUnknownCallAreIgnored() {
+        mgr.makeEndpoint("1001", "call-1").close();
+        RecordingCallback callback = new RecordingCallback();
+
+        mgr.getHandler().onMessage("verto.media", params("call-1"), callback);
+        mgr.getHandler().onMessage("verto.answer", params("call-1"), callback);
+        mgr.getHandler().onMessage("verto.bye", params("call-1"), callback);
+
+        assertEquals(1, callback.answers.size());
+        assertEquals("call-1", callback.answers.get(0).get("callID").getAsString());
+    }
+
+    @Test
+    public void byeIsAnsweredAndEndsCall() {
+        FreeswitchEndpoint endpoint = mgr.makeEndpoint("1001", "call-1");
+        RecordingCallback callback = new RecordingCallback();
+
+        mgr.getHandler().onMessage("verto.bye", params("call-1"), callback);
+
+        assertTrue(endpoint.isClosed());
+        assertEquals(0, mgr.getCallCount());
+        assertEquals(1, callback.answers.size());
+    }
+
+    @Test
+    public void callIsHungUpWhenSetupFails() {
+        List<FreeswitchEndpoint> created = new ArrayList<>();
+        mgr.addListener(new FreeswitchListener() {
+
+            @Override
+            public void onCallCreate(FreeswitchEndpoint endpoint, CallInfo info) {
+                created.add(endpoint);
+                throw new IllegalStateException("no bridge");
+            }
+
+            @Override
+            public void onCallDestroy(String id) {
+            }
+
+        });
+        JsonObject params = params("call-1");
+        params.addProperty("caller_id_number", "1001");
+
+        mgr.getHandler().onMessage("verto.invite", params, new RecordingCallback());
+
+        assertEquals(1, created.size());
+        assertTrue(created.get(0).isClosed());
+        assertEquals(0, mgr.getCallCount());
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.remote.call;
+
+import com.google.gson.JsonObject;
+import io.kamax.matrix.bridge.voip.SignalingTrace;
+import io.kamax.matrix.bridge.voip.config.FreeswitchConfig;
+import io.kamax.matrix.bridge.voip.config.TraceConfig;
+import io.kamax.matrix.json.GsonUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.servlets.DefaultServlet;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.websocket.server.WsSci;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.websocket.OnMessage;
+import javax.websocket.Session;
+import javax.websocket.server.ServerContainer;
+import javax.websocket.server.ServerEndpoint;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FreeswitchReconnectTest {
+
+    // Stand-in for the Verto module of FreeSWITCH: it only knows about logins
+    @ServerEndpoint("/")
+    public static class VertoServer {
+
+        private static final VertoCodec codec = new VertoCodec();
+        private static final BlockingQueue<String> logins = new LinkedBlockingQueue<>();
+        private static final AtomicInteger rejected = new AtomicInteger();
+        private static volatile Session current;
+
+        @OnMessage
+        public void onMessage(String message, Session session) throws IOException {
+            current = session;
+            for (VertoMessage msg : codec.read(message, id -> false)) {
+                if (!"login".equals(msg.getMethod())) {
+                    continue;
+                }
+
+                logins.add(GsonUtil.getStringOrThrow(msg.getBody(), "sessId"));
+                if (rejected.getAndDecrement() > 0) {
+                    session.getBasicRemote().sendText(codec.write(VertoMessage.error(msg.getId(), -32000, "Authentication Required", null)));
+                } else {
+                    JsonObject result = new JsonObject();
+                    result.addProperty("message", "logged in");
+                    session.getBasicRemote().sendText(codec.write(VertoMessage.result(msg.getId(), result)));
+                }
+            }
+        }
+
+    }
+
+    private Tomcat tomcat;
+    private ScheduledThreadPoolExecutor scheduler;
+    private ExecutorService connector;
+    private FreeswitchManager mgr;
+
+    @Before
+    public void before() throws Exception {
+        VertoServer.logins.clear();
+        VertoServer.rejected.set(0);
+        VertoServer.current = null;
+
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(Files.createTempDirectory("verto").toString());
+        tomcat.setPort(0);
+        StandardContext ctx = (StandardContext) tomcat.addContext("", null);
+        ctx.setClearReferencesObjectStreamClassCaches(false); // Not permitted on recent JVMs, and useless here
+        ctx.addServletContainerInitializer(new WsSci(), null);
+        Tomcat.addServlet(ctx, "default", new DefaultServlet());
+        ctx.addServletMappingDecoded("/", "default");
+        tomcat.start();
+        ServerContainer container = (ServerContainer) ctx.getServletContext().getAttribute(ServerContainer.class.getName());
+        container.addEndpoint(VertoServer.class);
+
+        FreeswitchConfig cfg = new FreeswitchConfig();
+        FreeswitchConfig.Verto verto = new FreeswitchConfig.Verto();
+        verto.setUrl("ws://127.0.0.1:" + tomcat.getConnector().getLocalPort() + "/");
+        verto.setLogin("1000@localhost");
+        verto.setReconnectDelay(50);
+        verto.setReconnectMaxDelay(100);
+
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+        connector = Executors.newCachedThreadPool();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        mgr = new FreeswitchManager(verto, scheduler, connector, new CandidateWaitPolicy(cfg.getCandidates(), registry), false, new SignalingTrace(new TraceConfig()), registry);
+    }
+
+    @After
+    public void after() throws Exception {
+        mgr.close();
+        connector.shutdownNow();
+        scheduler.shutdownNow();
+        tomcat.stop();
+        tomcat.destroy();
+    }
+
+    @Test
+    public void reconnectsWithSameSessionAfterServerDrop() throws Exception {
+        mgr.start().get(5, TimeUnit.SECONDS);
+        String sessId = VertoServer.logins.poll(5, TimeUnit.SECONDS);
+        assertNotNull(sessId);
+
+        VertoServer.current.close();
+
+        assertEquals(sessId, VertoServer.logins.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void retriesAfterRejectedLogin() throws Exception {
+        VertoServer.rejected.set(1);
+
+        try {
+            mgr.start().get(5, TimeUnit.SECONDS);
+            fail("First login should have been rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RpcException);
+        }
+
+        String sessId = VertoServer.logins.poll(5, TimeUnit.SECONDS);
+        assertNotNull(sessId);
+        assertEquals(sessId, VertoServer.logins.poll(5, TimeUnit.SECONDS));
+    }
+
+}
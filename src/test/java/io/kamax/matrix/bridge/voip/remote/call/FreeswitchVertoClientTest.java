@@ -0,0 +1,101 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.remote.call;
+
+import com.google.gson.JsonObject;
+import io.kamax.matrix.bridge.voip.config.FreeswitchConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class FreeswitchVertoClientTest {
+
+    private ScheduledThreadPoolExecutor scheduler;
+    private FreeswitchVertoClient client;
+    private VertoWriterTest.RecordingSession ws;
+
+    @Before
+    public void before() {
+        FreeswitchConfig.Verto cfg = new FreeswitchConfig.Verto();
+        cfg.setTimeout(100);
+        cfg.setQueueSize(2);
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        client = new FreeswitchVertoClient(scheduler, cfg);
+        ws = new VertoWriterTest.RecordingSession();
+        client.onOpen(ws.session);
+    }
+
+    @After
+    public void after() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void requestTimingOutBeforeSendIsNeverSent() throws Exception {
+        CompletableFuture<JsonObject> request = client.sendRequest("verto.invite", new JsonObject());
+        try {
+            request.get(5, TimeUnit.SECONDS);
+            fail("Request should have timed out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertEquals(0, client.getPendingCount());
+
+        CompletableFuture<JsonObject> login = client.login(new JsonObject());
+        assertEquals(1, ws.sent.size());
+        ws.complete();
+        client.onMessage("{\"jsonrpc\":\"2.0\",\"id\":2,\"result\":{}}");
+
+        assertTrue(login.isDone());
+        assertTrue(client.isReady());
+        assertEquals(1, ws.sent.size());
+    }
+
+    @Test
+    public void requestIsAnsweredOnceSent() throws Exception {
+        client.login(new JsonObject());
+        ws.complete();
+        client.onMessage("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":{}}");
+
+        CompletableFuture<JsonObject> request = client.sendRequest("verto.invite", new JsonObject());
+        assertEquals(2, ws.sent.size());
+        ws.complete();
+        client.onMessage("{\"jsonrpc\":\"2.0\",\"id\":2,\"result\":{\"message\":\"CALL CREATED\"}}");
+
+        assertEquals("CALL CREATED", request.get(5, TimeUnit.SECONDS).get("message").getAsString());
+        assertEquals(0, client.getPendingCount());
+    }
+
+    @Test
+    public void requestRefusedByWriterFailsAtOnce() {
+        client.sendRequest("verto.invite", new JsonObject());
+        client.sendRequest("verto.invite", new JsonObject());
+        CompletableFuture<JsonObject> refused = client.sendRequest("verto.invite", new JsonObject());
+
+        assertTrue(refused.isCompletedExceptionally());
+        assertEquals(2, client.getPendingCount());
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.remote.call;
+
+import com.google.gson.JsonObject;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VertoCodecTest {
+
+    private VertoCodec codec = new VertoCodec();
+
+    private VertoMessage readOne(String frame) {
+        List<VertoMessage> messages = codec.read(frame, id -> true);
+        assertEquals(1, messages.size());
+        return messages.get(0);
+    }
+
+    @Test
+    public void requestRoundTrip() {
+        JsonObject params = new JsonObject();
+        params.addProperty("sessId", "abc");
+        VertoMessage msg = readOne(codec.write(VertoMessage.request(7, "login", params)));
+
+        assertEquals(VertoMessage.Type.Request, msg.getType());
+        assertEquals(7, msg.getId());
+        assertEquals("login", msg.getMethod());
+        assertEquals("abc", msg.getBody().get("sessId").getAsString());
+    }
+
+    @Test
+    public void notificationHasNoId() {
+        String frame = codec.write(VertoMessage.notification("verto.punt", null));
+        assertFalse(frame.contains("\"id\""));
+
+        VertoMessage msg = readOne(frame);
+        assertEquals(VertoMessage.Type.Notification, msg.getType());
+        assertEquals("verto.punt", msg.getMethod());
+    }
+
+    @Test
+    public void resultRoundTrip() {
+        JsonObject result = new JsonObject();
+        result.addProperty("message", "logged in");
+        VertoMessage msg = readOne(codec.write(VertoMessage.result(3, result)));
+
+        assertEquals(VertoMessage.Type.Result, msg.getType());
+        assertEquals(3, msg.getId());
+        assertEquals("logged in", msg.getBody().get("message").getAsString());
+    }
+
+    @Test
+    public void errorRoundTrip() {
+        VertoMessage msg = readOne(codec.write(VertoMessage.error(4, -32000, "Authentication Required", null)));
+
+        assertEquals(VertoMessage.Type.Error, msg.getType());
+        assertEquals(4, msg.getId());
+        assertEquals(-32000, msg.getCode());
+        assertEquals("Authentication Required", msg.getMessage());
+    }
+
+    @Test
+    public void unexpectedResultIsNotBuilt() {
+        List<VertoMessage> messages = codec.read("{\"jsonrpc\":\"2.0\",\"id\":5,\"result\":{\"sdp\":\"v=0\"}}", id -> false);
+
+        assertEquals(VertoMessage.Type.Result, messages.get(0).getType());
+        assertEquals(5, messages.get(0).getId());
+        assertNull(messages.get(0).getBody());
+    }
+
+    @Test
+    public void readsBatches() {
+        List<VertoMessage> messages = codec.read("[" +
+                "{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":{}}," +
+                "{\"jsonrpc\":\"2.0\",\"method\":\"verto.event\",\"params\":{}}" +
+                "]", id -> true);
+
+        assertEquals(2, messages.size());
+        assertEquals(VertoMessage.Type.Result, messages.get(0).getType());
+        assertEquals(VertoMessage.Type.Notification, messages.get(1).getType());
+    }
+
+    @Test
+    public void nullIdIsNotification() {
+        assertEquals(VertoMessage.Type.Notification, readOne("{\"id\":null,\"method\":\"verto.event\"}").getType());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonRpc() {
+        codec.read("{\"jsonrpc\":\"2.0\"}", id -> true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidJson() {
+        codec.read("{\"id\":", id -> true);
+    }
+
+    @Test
+    public void largeFramesAreNotCorrupted() {
+        JsonObject params = new JsonObject();
+        String sdp = StringUtils.repeat("a=candidate:1 1 udp 1 1.2.3.4 5000 typ host\r\n", 4000);
+        params.addProperty("sdp", sdp);
+        codec.write(VertoMessage.request(1, "verto.invite", params));
+
+        // The buffer was dropped after the large frame, the next one must be complete on its own
+        VertoMessage msg = readOne(codec.write(VertoMessage.request(2, "verto.bye", new JsonObject())));
+        assertEquals(2, msg.getId());
+        assertEquals("verto.bye", msg.getMethod());
+        assertEquals(sdp, readOne(codec.write(VertoMessage.request(3, "verto.invite", params))).getBody().get("sdp").getAsString());
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.remote.call;
+
+import org.junit.Test;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class VertoWriterTest {
+
+    // Keeps what is written, until the test completes it like the websocket would
+    static class RecordingSession {
+
+        final List<String> sent = new ArrayList<>();
+        final List<SendHandler> handlers = new ArrayList<>();
+        int failures;
+
+        final Session session = (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class[]{Session.class}, (p, m, a) -> {
+            if ("getAsyncRemote".equals(m.getName())) {
+                return async();
+            }
+            if ("equals".equals(m.getName())) {
+                return p == a[0];
+            }
+            if ("hashCode".equals(m.getName())) {
+                return System.identityHashCode(p);
+            }
+            return null;
+        });
+
+        private RemoteEndpoint.Async async() {
+            return (RemoteEndpoint.Async) Proxy.newProxyInstance(RemoteEndpoint.Async.class.getClassLoader(), new Class[]{RemoteEndpoint.Async.class}, (p, m, a) -> {
+                if ("sendText".equals(m.getName()) && a.length == 2) {
+                    if (failures > 0) {
+                        failures--;
+                        throw new IllegalStateException("Websocket is closing");
+                    }
+                    sent.add((String) a[0]);
+                    handlers.add((SendHandler) a[1]);
+                }
+                return null;
+            });
+        }
+
+        void complete() {
+            handlers.remove(0).onResult(new SendResult());
+        }
+
+    }
+
+    private static void assertFailed(CompletableFuture<Void> f) {
+        try {
+            f.get();
+            fail("Frame should have failed");
+        } catch (ExecutionException | InterruptedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void refusesFramesWhenFull() {
+        VertoWriter writer = new VertoWriter(2, 10);
+        writer.write("1", false);
+        writer.write("2", false);
+
+        assertFailed(writer.write("3", false));
+        assertEquals(2, writer.size());
+    }
+
+    @Test
+    public void loginGoesFirstAndRequestsWaitForIt() {
+        VertoWriter writer = new VertoWriter(10, 1);
+        RecordingSession ws = new RecordingSession();
+        writer.open(ws.session);
+        CompletableFuture<Void> request = writer.write("request", false);
+        writer.write("login", true);
+        assertEquals(Arrays.asList("login"), ws.sent);
+
+        ws.complete();
+        assertEquals(1, ws.sent.size());
+        assertFalse(request.isDone());
+
+        writer.setReady();
+        assertEquals(Arrays.asList("login", "request"), ws.sent);
+        ws.complete();
+        assertTrue(request.isDone());
+    }
+
+    @Test
+    public void onlyOneFrameIsInFlight() {
+        VertoWriter writer = new VertoWriter(10, 1);
+        RecordingSession ws = new RecordingSession();
+        writer.open(ws.session);
+        writer.setReady();
+
+        writer.write("1", false);
+        writer.write("2", false);
+        assertEquals(Arrays.asList("1"), ws.sent);
+
+        ws.complete();
+        assertEquals(Arrays.asList("1", "2"), ws.sent);
+    }
+
+    @Test
+    public void queuedRequestsAreBatched() {
+        VertoWriter writer = new VertoWriter(10, 3);
+        List<CompletableFuture<Void>> written = Arrays.asList("1", "2", "3", "4", "5").stream()
+                .map(text -> writer.write(text, false))
+                .collect(Collectors.toList());
+        RecordingSession ws = new RecordingSession();
+        writer.open(ws.session);
+        writer.setReady();
+        assertEquals(Arrays.asList("[1,2,3]"), ws.sent);
+
+        ws.complete();
+        assertEquals(Arrays.asList("[1,2,3]", "[4,5]"), ws.sent);
+        ws.complete();
+        assertTrue(written.stream().allMatch(CompletableFuture::isDone));
+    }
+
+    @Test
+    public void cancelledFrameIsNeverSent() {
+        VertoWriter writer = new VertoWriter(10, 10);
+        CompletableFuture<Void> cancelled = writer.write("1", false);
+        writer.write("2", false);
+
+        assertTrue(writer.cancel(cancelled));
+        assertTrue(cancelled.isCancelled());
+
+        RecordingSession ws = new RecordingSession();
+        writer.open(ws.session);
+        writer.setReady();
+        assertEquals(Arrays.asList("2"), ws.sent);
+
+        // Too late once it went out
+        ws.complete();
+        assertFalse(writer.cancel(writer.write("3", false)));
+    }
+
+    @Test
+    public void closeDropsAnswersButKeepsRequests() {
+        VertoWriter writer = new VertoWriter(10, 1);
+        RecordingSession ws = new RecordingSession();
+        writer.open(ws.session);
+        writer.setReady();
+        writer.write("in flight", false);
+        CompletableFuture<Void> answer = writer.answer("answer");
+        CompletableFuture<Void> request = writer.write("request", false);
+
+        writer.close();
+        assertFailed(answer);
+        assertFalse(request.isDone());
+        assertEquals(1, writer.size());
+
+        RecordingSession next = new RecordingSession();
+        writer.open(next.session);
+        writer.setReady();
+        assertEquals(Arrays.asList("request"), next.sent);
+    }
+
+    @Test
+    public void failedSendDoesNotStallQueue() {
+        VertoWriter writer = new VertoWriter(10, 1);
+        CompletableFuture<Void> failed = writer.write("1", false);
+        writer.write("2", false);
+        RecordingSession ws = new RecordingSession();
+        ws.failures = 1;
+        writer.open(ws.session);
+
+        writer.setReady();
+
+        assertFailed(failed);
+        assertEquals(Arrays.asList("2"), ws.sent);
+    }
+
+}
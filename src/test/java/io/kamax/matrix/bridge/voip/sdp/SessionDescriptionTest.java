@@ -0,0 +1,130 @@
+/*
+ * matrix-appservice-voip - Matrix Bridge to VoIP/SMS
+ * Copyright (C) 2018 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.bridge.voip.sdp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionDescriptionTest {
+
+    private static final String sdp = "v=0\r\n" +
+            "o=- 1 1 IN IP4 127.0.0.1\r\n" +
+            "s=-\r\n" +
+            "a=group:BUNDLE audio video\r\n" +
+            "m=audio 9 UDP/TLS/RTP/SAVPF 111\r\n" +
+            "a=mid:audio\r\n" +
+            "a=candidate:1 1 udp 2122260223 192.168.1.2 50000 typ host\r\n" +
+            "a=end-of-candidates\r\n" +
+            "a=rtpmap:111 opus/48000/2\r\n" +
+            "m=video 9 UDP/TLS/RTP/SAVPF 96\r\n" +
+            "a=mid:video\r\n" +
+            "a=rtpmap:96 VP8/90000\r\n";
+
+    private static List<String> strings(List<CharSequence> values) {
+        String[] s = new String[values.size()];
+        for (int i = 0; i < s.length; i++) {
+            s[i] = values.get(i).toString();
+        }
+        return Arrays.asList(s);
+    }
+
+    @Test
+    public void parsesMediaSections() {
+        List<MediaSection> media = SessionDescription.parse(sdp).getMedia();
+
+        assertEquals(2, media.size());
+        assertEquals("audio", media.get(0).getType());
+        assertEquals("audio", media.get(0).getMid());
+        assertEquals(0, media.get(0).getIndex());
+        assertEquals("video", media.get(1).getType());
+        assertEquals("video", media.get(1).getMid());
+        assertEquals(media.get(0).getEnd(), media.get(1).getStart());
+        assertEquals(sdp.length(), media.get(1).getEnd());
+    }
+
+    @Test
+    public void attributesAreScopedToTheirSection() {
+        SessionDescription desc = SessionDescription.parse(sdp);
+
+        assertEquals(Collections.singletonList("BUNDLE audio video"), strings(desc.getAttributes("group")));
+        assertTrue(desc.getAttributes("rtpmap").isEmpty());
+        assertEquals(Collections.singletonList("1 1 udp 2122260223 192.168.1.2 50000 typ host"), strings(desc.getMedia().get(0).getAttributes("candidate")));
+        assertEquals(Collections.singletonList(""), strings(desc.getMedia().get(0).getAttributes("end-of-candidates")));
+        assertEquals(Collections.singletonList("96 VP8/90000"), strings(desc.getMedia().get(1).getAttributes("rtpmap")));
+    }
+
+    @Test
+    public void attributeNameMustMatchFully() {
+        SessionDescription desc = SessionDescription.parse(sdp);
+
+        assertTrue(desc.getMedia().get(0).getAttributes("candidates").isEmpty());
+        assertTrue(desc.getMedia().get(0).getAttributes("cand").isEmpty());
+    }
+
+    @Test
+    public void candidatesGoBeforeEndOfCandidates() {
+        String out = SessionDescription.parse(sdp).withCandidates(Collections.singletonList(
+                new IceCandidate("audio", 0L, "candidate:2 1 udp 1686052607 1.2.3.4 50000 typ srflx")));
+
+        assertTrue(out.contains("typ host\r\na=candidate:2 1 udp 1686052607 1.2.3.4 50000 typ srflx\r\na=end-of-candidates\r\n"));
+        assertEquals(sdp.length() + "a=candidate:2 1 udp 1686052607 1.2.3.4 50000 typ srflx\r\n".length(), out.length());
+    }
+
+    @Test
+    public void candidatesGoToTheSectionOfTheirMid() {
+        String out = SessionDescription.parse(sdp).withCandidates(Arrays.asList(
+                new IceCandidate("video", 0L, "a=candidate:3 1 udp 1 1.2.3.4 50002 typ host"),
+                new IceCandidate(null, 0L, "candidate:4 1 udp 1 1.2.3.4 50004 typ host")));
+
+        assertTrue(out.endsWith("a=rtpmap:96 VP8/90000\r\na=candidate:3 1 udp 1 1.2.3.4 50002 typ host\r\n"));
+        assertTrue(out.contains("typ host\r\na=candidate:4 1 udp 1 1.2.3.4 50004 typ host\r\na=end-of-candidates"));
+        assertEquals(2, SessionDescription.parse(out).getMedia().get(0).getAttributes("candidate").size());
+        assertEquals(1, SessionDescription.parse(out).getMedia().get(1).getAttributes("candidate").size());
+    }
+
+    @Test
+    public void unknownSectionGoesToLastOne() {
+        String out = SessionDescription.parse(sdp).withCandidates(Collections.singletonList(
+                new IceCandidate("data", 7L, "candidate:5 1 udp 1 1.2.3.4 50006 typ host")));
+
+        assertEquals(1, SessionDescription.parse(out).getMedia().get(1).getAttributes("candidate").size());
+    }
+
+    @Test
+    public void lastLineWithoutNewlineIsTerminated() {
+        String noEol = "v=0\r\nm=audio 9 RTP/AVP 0\r\na=mid:0";
+        String out = SessionDescription.parse(noEol).withCandidates(Collections.singletonList(
+                new IceCandidate("0", 0L, "candidate:1 1 udp 1 1.2.3.4 5000 typ host")));
+
+        assertEquals(noEol + "\r\na=candidate:1 1 udp 1 1.2.3.4 5000 typ host\r\n", out);
+    }
+
+    @Test
+    public void noCandidatesKeepsSdp() {
+        assertEquals(sdp, SessionDescription.parse(sdp).withCandidates(Collections.emptyList()));
+    }
+
+}